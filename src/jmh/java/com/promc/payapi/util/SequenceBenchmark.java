@@ -0,0 +1,91 @@
+package com.promc.payapi.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 雪花算法基准测试
+ * 对比 synchronized 的 {@link Sequence} 与无锁的 {@link AtomicSequence}
+ * <p>
+ * 运行: gradle jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceBenchmark {
+
+    private Sequence sequence;
+    private AtomicSequence atomicSequence;
+    private AtomicSequence laneSequence;
+
+    @Setup
+    public void setup() {
+        sequence = new Sequence(0L, 0L);
+        atomicSequence = new AtomicSequence(0L, 0L);
+        laneSequence = new AtomicSequence(0L, 0L, 5L, 4);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long sequence1() {
+        return sequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long sequence4() {
+        return sequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long sequence16() {
+        return sequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long atomic1() {
+        return atomicSequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long atomic4() {
+        return atomicSequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long atomic16() {
+        return atomicSequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long lane1() {
+        return laneSequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long lane4() {
+        return laneSequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long lane16() {
+        return laneSequence.nextId();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long[] atomicBatch16() {
+        return atomicSequence.nextIds(16);
+    }
+}
@@ -1,9 +1,11 @@
 package com.promc.payapi;
 
 import com.comphenix.protocol.ProtocolLibrary;
+import com.google.gson.JsonObject;
 import com.promc.payapi.api.PayInterface;
 import com.promc.payapi.api.order.Order;
 import com.promc.payapi.api.payway.Payway;
+import com.promc.payapi.api.storage.AsyncStorage;
 import com.promc.payapi.api.storage.Storage;
 import com.promc.payapi.event.PayCloseEvent;
 import com.promc.payapi.event.PayOpenEvent;
@@ -14,11 +16,26 @@ import com.promc.payapi.listener.PayListener;
 import com.promc.payapi.payway.AliPayway;
 import com.promc.payapi.payway.TenPayWay;
 import com.promc.payapi.payway.WeChatPayway;
+import com.promc.payapi.payway.paywayinf.TencentSigner;
+import com.promc.payapi.session.PaySession;
+import com.promc.payapi.session.PaySessionRegistry;
+import com.promc.payapi.storage.AsyncWriteStorage;
+import com.promc.payapi.storage.CachingStorage;
+import com.promc.payapi.storage.ExecutorAsyncStorage;
 import com.promc.payapi.storage.MySqlStorage;
+import com.promc.payapi.storage.SQLStorage;
 import com.promc.payapi.storage.SQLiteStorage;
+import com.promc.payapi.storage.WorkerLease;
+import com.promc.payapi.storage.WriteBehindStorage;
 import com.promc.payapi.util.*;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import org.bukkit.Bukkit;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.MemoryConfiguration;
@@ -38,6 +55,9 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * 插件主类
@@ -51,19 +71,34 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
     /**
      * 雪花算法 用于生成唯一的订单号
      */
-    private static final Sequence sequence = new Sequence(0L, 0L);
+    private volatile AtomicSequence sequence = new AtomicSequence(0L, 0L);
 
     /**
      * 雪花算法 用于生成唯一的订单号
      */
     private static PayAPI instance;
     private final List<Payway> paywayList = new ArrayList<>();
-    private final Map<UUID, Order> payingOrder = new HashMap<>();
+    // 标识符 - 支付方式
+    private final Map<String, Payway> paywayMap = new HashMap<>();
+    // 玩家 - 支付会话
+    private final PaySessionRegistry sessions = new PaySessionRegistry();
     private String notifyUrl;
     private Storage storage;
+    private ExecutorAsyncStorage asyncStorage;
+    private WriteBehindStorage writeBehindStorage;
+    // 把任务拉回主线程
+    private final Executor mainThreadExecutor = task -> {
+        if (Bukkit.isPrimaryThread()) {
+            task.run();
+        } else {
+            Bukkit.getScheduler().runTask(this, task);
+        }
+    };
+    // 短暂的异步任务 不要提交需要长时间等待的任务 会占用其它插件也在用的线程
+    private final Executor asyncExecutor = task -> Bukkit.getScheduler().runTaskAsynchronously(this, task);
     private HttpServer httpServer;
-    // 发起支付中
-    private Set<UUID> initiatePaying = new HashSet<>();
+    // 自动租用的工作ID
+    private WorkerLease workerLease;
 
     /**
      * 获取插件API
@@ -93,6 +128,8 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
 
         // 初始化
         setupStorage(getConfig().getConfigurationSection("storage"));
+        setupSequence(getConfig().getConfigurationSection("sequence"));
+        setupHttpClient(getConfig().getConfigurationSection("http-client"));
         setupPayway(getConfig().getConfigurationSection("merchant"));
         setupServer(getConfig().getConfigurationSection("server"));
     }
@@ -122,7 +159,92 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
             hikariConfig.setJdbcUrl(url);
             storage = new SQLiteStorage(new HikariDataSource(hikariConfig));
         }
+        ((SQLStorage) storage).setBinaryBuyer(storageConfig.getBoolean("binary-buyer", false));
         storage.createTable();
+
+        // 异步批量写入 避免在主线程中等待数据库
+        ConfigurationSection writeBehindConfig = storageConfig.getConfigurationSection("write-behind");
+        if (writeBehindConfig != null && writeBehindConfig.getBoolean("enable")) {
+            storage = writeBehindStorage = new WriteBehindStorage(
+                    (SQLStorage) storage,
+                    writeBehindConfig.getInt("max-batch", 100),
+                    writeBehindConfig.getLong("max-latency", 50L),
+                    writeBehindConfig.getInt("queue-size", 10000)
+            );
+            LoggerUtil.info("启用异步批量写入!");
+        }
+
+        // 缓存最近的订单 减少重复查询
+        ConfigurationSection cacheConfig = storageConfig.getConfigurationSection("cache");
+        if (cacheConfig != null && cacheConfig.getBoolean("enable")) {
+            storage = CachingStorage.create(
+                    storage,
+                    cacheConfig.getInt("size", 4096),
+                    cacheConfig.getLong("ttl", 600L)
+            );
+            LoggerUtil.info("启用订单缓存!");
+        }
+
+        // 异步存储的线程数与连接池大小一致 更多的线程也只会等待连接
+        asyncStorage = new ExecutorAsyncStorage(storage, hikariConfig.getMaximumPoolSize(), 1000);
+    }
+
+    /**
+     * 配置订单号生成器
+     * 多个服务器共用一个数据库时 每个服务器的工作ID必须不同 否则订单号可能冲突
+     *
+     * @param sequenceConfig 订单号配置
+     */
+    public void setupSequence(ConfigurationSection sequenceConfig) {
+        if (sequenceConfig == null) {
+            sequenceConfig = new MemoryConfiguration();
+        }
+        long dataCenterId = sequenceConfig.getLong("data-center-id", 0L);
+        long workerId = sequenceConfig.getLong("worker-id", 0L);
+        if (workerId < 0) {
+            // 从数据库中自动租用工作ID 并定时续租
+            workerLease = new WorkerLease(storage, dataCenterId);
+            workerId = workerLease.lease();
+            long period = WorkerLease.RENEW_INTERVAL / 50L;
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this, this::renewWorkerLease, period, period);
+        }
+        sequence = new AtomicSequence(dataCenterId, workerId);
+        LoggerUtil.info("订单号数据中心ID: " + dataCenterId + " 工作ID: " + workerId);
+    }
+
+    /**
+     * 续租工作ID
+     * 租约丢失时重新租用一个工作ID
+     */
+    private synchronized void renewWorkerLease() {
+        try {
+            if (!workerLease.renew()) {
+                LoggerUtil.warn("工作ID租约已丢失, 正在重新租用...");
+                // 旧的工作ID可能已经被其它服务器接管 lease() 会先更新租约再返回
+                // 先置空 避免新租约生效后 nextOrderId 还拿着旧工作ID的生成器 重新租用失败时也保持为空
+                sequence = null;
+                sequence = new AtomicSequence(workerLease.getDataCenterId(), workerLease.lease());
+                LoggerUtil.info("重新租用工作ID: " + workerLease.getWorkerId());
+            }
+        } catch (IllegalStateException e) {
+            LoggerUtil.error("工作ID续租失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 配置请求支付平台的HTTP客户端
+     *
+     * @param clientConfig 客户端配置
+     */
+    public void setupHttpClient(ConfigurationSection clientConfig) {
+        if (clientConfig == null) {
+            clientConfig = new MemoryConfiguration();
+        }
+        HttpUtil.setup(
+                clientConfig.getInt("connect-timeout", HttpUtil.DEFAULT_CONNECT_TIMEOUT),
+                clientConfig.getLong("read-timeout", HttpUtil.DEFAULT_READ_TIMEOUT),
+                clientConfig.getInt("max-connections", HttpUtil.DEFAULT_MAX_CONNECTIONS)
+        );
     }
 
     /**
@@ -136,25 +258,35 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
         }
         ConfigurationSection alipayConfig = merchantConfig.getConfigurationSection("alipay");
         if (alipayConfig != null && alipayConfig.getBoolean("enable")) {
-            paywayList.add(new AliPayway(
-                    alipayConfig.getString("app-id"),
-                    alipayConfig.getString("alipay-public-key"),
-                    alipayConfig.getString("merchant-private-key")
-            ));
-            LoggerUtil.info("加载支付宝商户!");
+            try {
+                registerPayway(new AliPayway(
+                        alipayConfig.getString("app-id"),
+                        alipayConfig.getString("alipay-public-key", ""),
+                        alipayConfig.getString("merchant-private-key", "")
+                ));
+                LoggerUtil.info("加载支付宝商户!");
+            } catch (IllegalArgumentException e) {
+                // 密钥在启动时就解析 配置错误时不加载 避免到第一次支付时才发现
+                LoggerUtil.error("支付宝商户配置错误: " + e.getMessage());
+            }
         }
         ConfigurationSection wechatConfig = merchantConfig.getConfigurationSection("wechat");
         if (wechatConfig != null && wechatConfig.getBoolean("enable")) {
-            paywayList.add(new WeChatPayway(
-                    wechatConfig.getString("app-id"),
-                    wechatConfig.getString("merchant-id"),
-                    wechatConfig.getString("merchant-key")
-            ));
-            LoggerUtil.info("加载微信商户!");
+            try {
+                registerPayway(new WeChatPayway(
+                        wechatConfig.getString("app-id"),
+                        wechatConfig.getString("merchant-id"),
+                        wechatConfig.getString("merchant-key"),
+                        TencentSigner.SignType.of(wechatConfig.getString("sign-type", "MD5"))
+                ));
+                LoggerUtil.info("加载微信商户!");
+            } catch (IllegalArgumentException e) {
+                LoggerUtil.error("微信商户配置错误: " + e.getMessage());
+            }
         }
         ConfigurationSection tenpayConfig = merchantConfig.getConfigurationSection("tenpay");
         if (tenpayConfig != null && tenpayConfig.getBoolean("enable")) {
-            paywayList.add(new TenPayWay(
+            registerPayway(new TenPayWay(
                     tenpayConfig.getString("app-id"),
                     tenpayConfig.getString("merchant-id"),
                     tenpayConfig.getString("merchant-key")
@@ -163,6 +295,16 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
         }
     }
 
+    /**
+     * 注册支付方式
+     *
+     * @param payway 支付方式
+     */
+    private void registerPayway(@NotNull Payway payway) {
+        paywayList.add(payway);
+        paywayMap.put(payway.getIdentifier(), payway);
+    }
+
     /**
      * 配置本地服务器
      *
@@ -196,13 +338,69 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
         } else {
             httpServer.setDefaultPage(IOUtil.readString(getResource("index.html")).toString());
         }
-        httpServer.start(port);
+        httpServer.setThreads(serverConfig.getInt("acceptor-threads", 1), serverConfig.getInt("io-threads", 2));
+        httpServer.setTransport(serverConfig.getBoolean("epoll", true), serverConfig.getBoolean("reuse-port", false));
+        // 每个支付方式的异步通知地址为 /<标识符>
+        for (Payway payway : paywayList) {
+            httpServer.route(HttpMethod.POST, "/" + payway.getIdentifier(), payway::notify, true);
+        }
+        httpServer.route(HttpMethod.GET, "/order", this::sendOrderStatus, true);
+        if (storage instanceof CachingStorage) {
+            CachingStorage cachingStorage = (CachingStorage) storage;
+            httpServer.addMetric("payapi_order_cache_hits_total", cachingStorage::getHits);
+            httpServer.addMetric("payapi_order_cache_misses_total", cachingStorage::getMisses);
+        }
+        httpServer.setMaxBodySize(serverConfig.getInt("max-body-size", 16384));
+        httpServer.start(
+                port,
+                serverConfig.getInt("notify-threads", Runtime.getRuntime().availableProcessors()),
+                serverConfig.getInt("notify-queue-size", 1000)
+        );
         LoggerUtil.info("启动HTTP服务器(" + port + "): " + notifyUrl);
     }
 
+    /**
+     * 查询订单状态 GET /order?id=订单号
+     * 只返回订单号和状态 不暴露买家和支付信息
+     */
+    private void sendOrderStatus(@NotNull ChannelHandlerContext ctx, @NotNull FullHttpRequest request) {
+        List<String> ids = new QueryStringDecoder(request.uri()).parameters().get("id");
+        long orderId;
+        try {
+            orderId = ids == null || ids.isEmpty() ? -1L : Long.parseLong(ids.get(0));
+        } catch (NumberFormatException e) {
+            orderId = -1L;
+        }
+        if (orderId < 0) {
+            HttpServer.sendResponse(ctx, request, HttpResponseStatus.BAD_REQUEST, "{\"error\":\"invalid id\"}", HttpHeaderValues.APPLICATION_JSON);
+            return;
+        }
+        Order order = storage.selectOrderById(orderId);
+        if (order == null) {
+            HttpServer.sendResponse(ctx, request, HttpResponseStatus.NOT_FOUND, "{\"error\":\"not found\"}", HttpHeaderValues.APPLICATION_JSON);
+            return;
+        }
+        JsonObject json = new JsonObject();
+        // 订单号超过了JavaScript的安全整数范围 以字符串返回
+        json.addProperty("id", String.valueOf(order.getId()));
+        json.addProperty("status", order.getStatus());
+        HttpServer.sendResponse(ctx, request, HttpResponseStatus.OK, json.toString(), HttpHeaderValues.APPLICATION_JSON);
+    }
+
     @Override
     public void onDisable() {
         httpServer.close();
+        HttpUtil.shutdown();
+        if (workerLease != null) {
+            workerLease.release();
+        }
+        if (asyncStorage != null) {
+            asyncStorage.close();
+        }
+        if (writeBehindStorage != null) {
+            // 等待队列中的订单全部写入
+            writeBehindStorage.close();
+        }
     }
 
     @Override
@@ -214,12 +412,7 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
     @Override
     @NotNull
     public Optional<Payway> getPayway(@NotNull String identifier) {
-        for (Payway payway : paywayList) {
-            if (payway.getIdentifier().equals(identifier)) {
-                return Optional.of(payway);
-            }
-        }
-        return Optional.empty();
+        return Optional.ofNullable(paywayMap.get(identifier));
     }
 
     @Override
@@ -230,26 +423,72 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
 
     @Override
     public boolean isPaying(@NotNull UUID uuid) {
-        return payingOrder.containsKey(uuid);
+        return sessions.isShowing(uuid);
     }
 
     @Override
     @NotNull
     public Map<UUID, Order> getPayingOrders() {
-        return payingOrder;
+        return sessions.snapshotShowing();
+    }
+
+    /**
+     * 获取支付会话注册表
+     *
+     * @return 支付会话注册表
+     */
+    @NotNull
+    public PaySessionRegistry getSessions() {
+        return sessions;
     }
 
     @Override
     @NotNull
     public Order createOrder(@NotNull UUID buyer, @NotNull BigDecimal amount, @NotNull String subject) {
+        // 兼容旧的调用方 插件内部不使用
+        try {
+            return createOrderAsync(buyer, amount, subject).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IllegalStateException) {
+                throw (IllegalStateException) cause;
+            }
+            throw new IllegalStateException("数据库异常", cause);
+        }
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Order> createOrderAsync(@NotNull UUID buyer, @NotNull BigDecimal amount, @NotNull String subject) {
         Order order = new Order();
-        order.setId(sequence.nextId());
+        try {
+            order.setId(nextOrderId());
+        } catch (IllegalStateException e) {
+            CompletableFuture<Order> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
         order.setBuyer(buyer);
         order.setTotalFee(amount);
         order.setCreateTime(new Timestamp(System.currentTimeMillis()));
         order.setSubject(subject);
-        storage.insertOrder(order);
-        return order;
+        // 订单号必须在写入成功后才能交给玩家支付
+        return asyncStorage.insertOrder(order).thenApply(v -> order);
+    }
+
+    /**
+     * 生成订单号
+     * 自动租用的工作ID已经过期时直接拒绝生成 避免与接管了该工作ID的服务器生成相同的订单号
+     * 这里不续租 续租只由定时任务完成 下单不会等待数据库
+     *
+     * @return 订单号
+     */
+    private long nextOrderId() {
+        AtomicSequence current = sequence;
+        if (workerLease != null && (current == null || !workerLease.isValid())) {
+            throw new IllegalStateException("工作ID租约已过期");
+        }
+        return current.nextId();
     }
 
     @Override
@@ -263,43 +502,72 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
             throw new IllegalStateException("订单状态异常");
         }
 
-        if (isPaying(order.getBuyer())) {
-            throw new IllegalStateException("玩家正在支付");
-        }
-
-        if (initiatePaying.contains(order.getBuyer())) {
-            throw new IllegalStateException("请稍后再试");
+        PaySession session = sessions.begin(order);
+        if (session == null) {
+            throw new IllegalStateException(isPaying(order.getBuyer()) ? "玩家正在支付" : "请稍后再试");
         }
-        initiatePaying.add(order.getBuyer());
 
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-            String qrcodeUrl = payway.nativePay(order);
-            if (qrcodeUrl != null) {
-                BufferedImage image = FastQRCodeUtil.createQrCode(qrcodeUrl);
-                QRCodeGenerateEvent qrCodeGenerateEvent = new QRCodeGenerateEvent(this, order, qrcodeUrl, image);
-                Bukkit.getPluginManager().callEvent(qrCodeGenerateEvent);
-                BufferedImage qrCodeImage = qrCodeGenerateEvent.getQRCodeImage();
-                MapUtil.sendMapItemPacket(player, MapUtil.buildMapItem());
-                MapUtil.sendMapViewPacket(player, qrCodeImage);
-                payingOrder.put(player.getUniqueId(), order);
-                Bukkit.getScheduler().runTask(this, () -> {
-                    PayOpenEvent payOpenEvent = new PayOpenEvent(this, order);
-                    Bukkit.getPluginManager().callEvent(payOpenEvent);
+        // 等待支付平台响应时不占用线程 拿到二维码地址后再生成二维码并发包
+        // 从已完成的future开始 nativePayAsync同步抛出的异常也会走到下面的fail
+        CompletableFuture.completedFuture(order)
+                .thenComposeAsync(payway::nativePayAsync, asyncExecutor)
+                .thenAcceptAsync(qrcodeUrl -> {
+                    if (qrcodeUrl != null) {
+                        byte[][] qrcode = FastQRCodeUtil.generateQrCode(qrcodeUrl);
+                        byte[] mapColors;
+                        if (QRCodeGenerateEvent.getHandlerList().getRegisteredListeners().length == 0) {
+                            // 没有插件美化二维码 直接把矩阵写成地图色 不经过AWT
+                            mapColors = FastQRCodeUtil.toMapColors(qrcode);
+                        } else {
+                            BufferedImage image = FastQRCodeUtil.toBufferedImage(qrcode, 128);
+                            QRCodeGenerateEvent qrCodeGenerateEvent = new QRCodeGenerateEvent(this, order, qrcodeUrl, image);
+                            Bukkit.getPluginManager().callEvent(qrCodeGenerateEvent);
+                            mapColors = MapColor.getByte(qrCodeGenerateEvent.getQRCodeImage());
+                        }
+                        // 每个会话使用自己的地图ID 先发地图数据 客户端拿到地图物品时就能直接显示二维码
+                        MapUtil.sendMapViewPacket(player, session.getMapId(), mapColors);
+                        // 会话还是INITIATING 监听器不会因为这个包关闭会话
+                        session.setMapPacket(MapUtil.sendMapItemPacket(player, MapUtil.buildMapItem(session.getMapId())).getHandle());
+                        if (sessions.show(session)) {
+                            Bukkit.getScheduler().runTask(this, () -> {
+                                PayOpenEvent payOpenEvent = new PayOpenEvent(this, order);
+                                Bukkit.getPluginManager().callEvent(payOpenEvent);
+                            });
+                        } else {
+                            // 显示二维码前订单已经支付 把发出去的地图换回来
+                            Bukkit.getScheduler().runTask(this, () -> {
+                                if (player.isOnline()) {
+                                    player.updateInventory();
+                                }
+                            });
+                        }
+                    } else {
+                        LoggerUtil.warn("订单 " + order.getId() + " 发起支付失败");
+                    }
+                }, asyncExecutor)
+                .whenComplete((r, e) -> {
+                    if (e != null) {
+                        LoggerUtil.error("订单 " + order.getId() + " 发起支付失败: " + e.getMessage());
+                    }
+                    // 已经显示或已经支付的会话不受影响
+                    sessions.fail(session);
                 });
-            }
-            initiatePaying.remove(order.getBuyer());
-        });
     }
 
     @Override
     public void markPay(Map<String, String> orderInfo) {
+        if (!isEnabled()) {
+            // 插件关闭后无法回到主线程发放 不标记支付 让支付平台在重启后重试通知
+            throw new IllegalStateException("插件已关闭");
+        }
         String outTradeNo = orderInfo.get("out_trade_no");
         long orderId = Long.parseLong(outTradeNo);
-        if (storage.markPay(orderId, GSON.toJson(orderInfo))) {
-            Order order = storage.selectOrderById(orderId);
+        Order order = storage.markPayAndGet(orderId, GSON.toJson(orderInfo));
+        if (order != null) {
+            PaySession.State state = sessions.pay(order);
             Player player = Bukkit.getPlayer(order.getBuyer());
             if (player != null) {
-                if (payingOrder.remove(player.getUniqueId()) != null) {
+                if (state == PaySession.State.SHOWING) {
                     Bukkit.getScheduler().runTask(this, () -> {
                         PayCloseEvent payCloseEvent = new PayCloseEvent(this, order);
                         Bukkit.getPluginManager().callEvent(payCloseEvent);
@@ -320,4 +588,16 @@ public final class PayAPI extends JavaPlugin implements PayInterface {
     public Storage getStorage() {
         return storage;
     }
-}
\ No newline at end of file
+
+    @Override
+    @NotNull
+    public AsyncStorage getAsyncStorage() {
+        return asyncStorage;
+    }
+
+    @Override
+    @NotNull
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+}
@@ -3,6 +3,7 @@ package com.promc.payapi.api;
 import com.google.gson.Gson;
 import com.promc.payapi.api.order.Order;
 import com.promc.payapi.api.payway.Payway;
+import com.promc.payapi.api.storage.AsyncStorage;
 import com.promc.payapi.api.storage.Storage;
 import org.jetbrains.annotations.NotNull;
 
@@ -11,6 +12,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface PayInterface {
 
@@ -52,13 +55,14 @@ public interface PayInterface {
     /**
      * 获取所有正在支付的订单
      *
-     * @return 正在支付的订单
+     * @return 正在支付的订单 调用时的快照 修改不会影响支付状态
      */
     @NotNull
     Map<UUID, Order> getPayingOrders();
 
     /**
      * 创建订单
+     * 会阻塞调用线程直到订单写入数据库 仅为兼容保留 请使用 {@link #createOrderAsync(UUID, BigDecimal, String)}
      *
      * @param buyer   买家
      * @param amount  支付金额
@@ -68,6 +72,18 @@ public interface PayInterface {
     @NotNull
     Order createOrder(@NotNull UUID buyer, @NotNull BigDecimal amount, @NotNull String subject);
 
+    /**
+     * 异步创建订单
+     * 订单写入数据库后才完成 写入失败时异常完成 不要把未完成的订单交给玩家支付
+     *
+     * @param buyer   买家
+     * @param amount  支付金额
+     * @param subject 标题
+     * @return 订单号
+     */
+    @NotNull
+    CompletableFuture<Order> createOrderAsync(@NotNull UUID buyer, @NotNull BigDecimal amount, @NotNull String subject);
+
     /**
      * 发起支付
      * 一个订单只能发起一次支付 避免造成重复支付
@@ -92,4 +108,22 @@ public interface PayInterface {
      */
     @NotNull
     Storage getStorage();
+
+    /**
+     * 获取异步存储
+     * 不会阻塞调用的线程
+     *
+     * @return 异步存储
+     */
+    @NotNull
+    AsyncStorage getAsyncStorage();
+
+    /**
+     * 获取主线程执行器
+     * 用于把异步结果拉回服务器主线程处理 已经在主线程时直接执行
+     *
+     * @return 主线程执行器
+     */
+    @NotNull
+    Executor getMainThreadExecutor();
 }
@@ -0,0 +1,57 @@
+package com.promc.payapi.api.payway;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 执行阻塞的 {@link Payway#nativePay(com.promc.payapi.api.order.Order)} 的线程池
+ * 不使用公共线程池 避免下单高峰时阻塞的HTTP请求占满服务器上其它插件也在用的线程
+ * 线程数和队列都有上限 队列满时直接返回失败的结果
+ */
+final class BlockingPayExecutor {
+
+    private static final int THREADS = 4;
+
+    private static final int QUEUE_SIZE = 64;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        EXECUTOR = new ThreadPoolExecutor(
+                THREADS, THREADS,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                r -> {
+                    Thread thread = new Thread(r, "PayAPI-Payway-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        // 空闲时不保留线程 插件重载后旧的线程会自动退出
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private BlockingPayExecutor() {
+        throw new UnsupportedOperationException("此类不允许实例化!");
+    }
+
+    /**
+     * 提交到线程池
+     * 线程池已满时返回失败的结果
+     */
+    @NotNull
+    static <T> CompletableFuture<T> supply(@NotNull Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+}
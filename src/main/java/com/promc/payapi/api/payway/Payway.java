@@ -6,6 +6,8 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 支付方式
  */
@@ -29,6 +31,19 @@ public interface Payway {
     @Nullable
     String nativePay(@NotNull Order order);
 
+    /**
+     * 异步发起Native支付
+     * 默认在插件自己的有界线程池中调用 {@link #nativePay(Order)} 线程池已满时返回失败的结果
+     * 实现类应该使用非阻塞的HTTP请求覆盖此方法
+     *
+     * @param order 订单号
+     * @return 支付二维码地址 失败时为null
+     */
+    @NotNull
+    default CompletableFuture<String> nativePayAsync(@NotNull Order order) {
+        return BlockingPayExecutor.supply(() -> nativePay(order));
+    }
+
     /**
      * 支付方式的异步通知
      *
@@ -0,0 +1,90 @@
+package com.promc.payapi.api.storage;
+
+import com.promc.payapi.api.order.Order;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 异步存储
+ * {@link Storage} 的异步视图 所有操作都在独立的线程池中执行 可以在任何线程中调用
+ * <p>
+ * 结果需要在主线程处理时 使用 {@link com.promc.payapi.api.PayInterface#getMainThreadExecutor()}
+ * 例: {@code selectOrderById(id).thenAcceptAsync(order -> ..., api.getMainThreadExecutor())}
+ */
+public interface AsyncStorage {
+
+    /**
+     * 插入订单号
+     *
+     * @param order 订单号
+     * @return 插入完成
+     */
+    @NotNull
+    CompletableFuture<Void> insertOrder(@NotNull Order order);
+
+    /**
+     * 获取订单
+     *
+     * @param orderId 订单号
+     * @return 订单 不存在时为null
+     */
+    @NotNull
+    CompletableFuture<Order> selectOrderById(long orderId);
+
+    /**
+     * 标记支付
+     *
+     * @param orderId 订单号
+     * @param info    订单信息
+     * @return 是否标记成功
+     */
+    @NotNull
+    CompletableFuture<Boolean> markPay(long orderId, @NotNull String info);
+
+    /**
+     * 标记支付并返回支付后的订单
+     *
+     * @param orderId 订单号
+     * @param info    订单信息
+     * @return 支付后的订单 订单不存在或已经支付过时为null
+     */
+    @NotNull
+    CompletableFuture<Order> markPayAndGet(long orderId, @NotNull String info);
+
+    /**
+     * 分页查询买家的订单
+     *
+     * @see Storage#selectOrdersByBuyer(UUID, int, int)
+     */
+    @NotNull
+    CompletableFuture<List<Order>> selectOrdersByBuyer(@NotNull UUID buyer, int page, int pageSize);
+
+    /**
+     * 查询某个时间之后创建的某个状态的订单
+     *
+     * @see Storage#selectOrdersByStatus(int, Timestamp, int)
+     */
+    @NotNull
+    CompletableFuture<List<Order>> selectOrdersByStatus(int status, @NotNull Timestamp since, int limit);
+
+    /**
+     * 按创建时间范围查询订单
+     *
+     * @see Storage#selectOrdersByTime(Timestamp, Timestamp, Order, int)
+     */
+    @NotNull
+    CompletableFuture<List<Order>> selectOrdersByTime(@NotNull Timestamp from, @NotNull Timestamp to, @Nullable Order after, int limit);
+
+    /**
+     * 获取同步的存储
+     *
+     * @return 存储
+     */
+    @NotNull
+    Storage getStorage();
+}
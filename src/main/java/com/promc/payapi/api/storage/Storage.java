@@ -4,6 +4,10 @@ import com.promc.payapi.api.order.Order;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+
 /**
  * 存储
  */
@@ -11,6 +15,11 @@ public interface Storage {
 
     String TABLE_NAME = "pay_order";
 
+    /**
+     * 工作ID租约表 多个服务器共用一个数据库时 用于分配订单号的工作ID
+     */
+    String WORKER_TABLE_NAME = "pay_worker";
+
     /**
      * 创建表
      */
@@ -39,4 +48,80 @@ public interface Storage {
      * @param info    订单信息
      */
     boolean markPay(long orderId, @NotNull String info);
+
+    /**
+     * 标记支付并返回支付后的订单
+     * 与 {@link #markPay(long, String)} 相同 但在一次数据库操作中同时取回订单
+     *
+     * @param orderId 订单号
+     * @param info    订单信息
+     * @return 支付后的订单 订单不存在或已经支付过时返回null
+     */
+    @Nullable
+    Order markPayAndGet(long orderId, @NotNull String info);
+
+    /**
+     * 分页查询买家的订单 按创建时间倒序
+     *
+     * @param buyer    买家
+     * @param page     页码 从0开始
+     * @param pageSize 每页数量
+     * @return 订单
+     */
+    @NotNull
+    List<Order> selectOrdersByBuyer(@NotNull UUID buyer, int page, int pageSize);
+
+    /**
+     * 查询某个时间之后创建的某个状态的订单 按创建时间正序
+     *
+     * @param status 订单状态
+     * @param since  起始创建时间(包含)
+     * @param limit  最大数量
+     * @return 订单
+     */
+    @NotNull
+    List<Order> selectOrdersByStatus(int status, @NotNull Timestamp since, int limit);
+
+    /**
+     * 按创建时间范围查询订单 按创建时间正序
+     * 使用上一页的最后一个订单作为游标翻页 不会因为偏移量过大而变慢
+     *
+     * @param from  起始创建时间(包含)
+     * @param to    结束创建时间(不包含)
+     * @param after 上一页的最后一个订单 查询第一页时为null
+     * @param limit 最大数量
+     * @return 订单
+     */
+    @NotNull
+    List<Order> selectOrdersByTime(@NotNull Timestamp from, @NotNull Timestamp to, @Nullable Order after, int limit);
+
+    /**
+     * 租用一个空闲(未被租用或租约已过期)的工作ID
+     *
+     * @param dataCenterId 数据中心ID
+     * @param owner        租用者
+     * @param expireTime   租约过期时间(毫秒时间戳)
+     * @return 工作ID 没有空闲的工作ID时返回-1
+     */
+    long leaseWorkerId(long dataCenterId, @NotNull String owner, long expireTime);
+
+    /**
+     * 续租工作ID
+     *
+     * @param dataCenterId 数据中心ID
+     * @param workerId     工作ID
+     * @param owner        租用者
+     * @param expireTime   新的租约过期时间(毫秒时间戳)
+     * @return 是否续租成功 租约已被其它租用者抢占时返回false
+     */
+    boolean renewWorkerId(long dataCenterId, long workerId, @NotNull String owner, long expireTime);
+
+    /**
+     * 释放工作ID
+     *
+     * @param dataCenterId 数据中心ID
+     * @param workerId     工作ID
+     * @param owner        租用者
+     */
+    void releaseWorkerId(long dataCenterId, long workerId, @NotNull String owner);
 }
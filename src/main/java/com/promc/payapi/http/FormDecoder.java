@@ -0,0 +1,99 @@
+package com.promc.payapi.http;
+
+import io.netty.buffer.ByteBuf;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * application/x-www-form-urlencoded 解码器
+ * 直接扫描请求体 一次完成分割和URL解码 不会先转换为字符串再分割
+ */
+public final class FormDecoder {
+
+    /**
+     * 最多解析的参数数量 支付通知一般只有二三十个参数
+     */
+    public static final int MAX_PARAMS = 128;
+
+    private FormDecoder() {
+    }
+
+    /**
+     * 解码表单
+     * 参数名和参数值按UTF-8解码 重复的参数保留最后一个
+     *
+     * @param content 请求体 不会改变读取位置
+     * @return 参数
+     * @throws IllegalArgumentException 格式错误或参数过多
+     */
+    @NotNull
+    public static Map<String, String> decode(@NotNull ByteBuf content) {
+        int length = content.readableBytes();
+        // 解码后不会变长 所以直接在复制出来的数组中原地解码
+        byte[] bytes = new byte[length];
+        content.getBytes(content.readerIndex(), bytes);
+
+        Map<String, String> params = new HashMap<>();
+        String name = null;
+        int start = 0;
+        int write = 0;
+        for (int read = 0; read <= length; read++) {
+            byte b = read < length ? bytes[read] : (byte) '&';
+            switch (b) {
+                case '=':
+                    if (name == null) {
+                        name = new String(bytes, start, write - start, StandardCharsets.UTF_8);
+                        start = write;
+                        continue;
+                    }
+                    // 参数值中的 = 原样保留
+                    break;
+                case '&':
+                    if (name == null) {
+                        // 没有 = 的参数视为值为空
+                        name = new String(bytes, start, write - start, StandardCharsets.UTF_8);
+                        start = write;
+                    }
+                    if (!name.isEmpty()) {
+                        if (params.size() >= MAX_PARAMS && !params.containsKey(name)) {
+                            throw new IllegalArgumentException("参数过多");
+                        }
+                        params.put(name, new String(bytes, start, write - start, StandardCharsets.UTF_8));
+                    }
+                    name = null;
+                    start = write;
+                    continue;
+                case '+':
+                    b = ' ';
+                    break;
+                case '%':
+                    if (read + 2 >= length) {
+                        throw new IllegalArgumentException("URL编码不完整");
+                    }
+                    b = (byte) ((hex(bytes[read + 1]) << 4) | hex(bytes[read + 2]));
+                    read += 2;
+                    break;
+                default:
+                    break;
+            }
+            bytes[write++] = b;
+        }
+        return params;
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        throw new IllegalArgumentException("URL编码错误");
+    }
+}
@@ -0,0 +1,365 @@
+package com.promc.payapi.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Netty的HTTP客户端
+ * 每个 协议+主机+端口 一个连接池 连接在响应后归还并复用 HTTPS连接复用同一个 {@link SslContext} 的会话缓存
+ * 所有请求都是异步的 结果在IO线程中完成 不要在回调中执行阻塞操作
+ */
+public class HttpClient {
+
+    /**
+     * 响应体的最大长度
+     */
+    private static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    /**
+     * 空闲连接的关闭时间(秒) 需要比网关关闭空闲连接的时间短 避免使用已经被对方关闭的连接
+     */
+    private static final int IDLE_TIMEOUT = 30;
+
+    private static final String RESPONSE_HANDLER = "response";
+
+    private final EventLoopGroup group;
+
+    private final SslContext sslContext;
+
+    private final int connectTimeout;
+
+    private final long readTimeout;
+
+    private final AbstractChannelPoolMap<Endpoint, FixedChannelPool> pools;
+
+    /**
+     * @param connectTimeout 连接超时(毫秒) 包括TLS握手
+     * @param readTimeout    读取超时(毫秒) 从发送请求到收到完整响应
+     * @param maxConnections 每个主机的最大连接数
+     */
+    public HttpClient(int connectTimeout, long readTimeout, int maxConnections) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.group = new NioEventLoopGroup(1, new DefaultThreadFactory("PayAPI-HttpClient", true));
+        try {
+            this.sslContext = SslContextBuilder.forClient().build();
+        } catch (SSLException e) {
+            throw new IllegalStateException("无法初始化TLS", e);
+        }
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true);
+        this.pools = new AbstractChannelPoolMap<Endpoint, FixedChannelPool>() {
+            @Override
+            protected FixedChannelPool newPool(Endpoint key) {
+                Bootstrap poolBootstrap = bootstrap.clone().remoteAddress(InetSocketAddress.createUnresolved(key.host, key.port));
+                return new FixedChannelPool(poolBootstrap, new PoolHandler(key), maxConnections);
+            }
+        };
+    }
+
+    /**
+     * 发送GET请求
+     *
+     * @param url 地址
+     * @return 响应体
+     */
+    @NotNull
+    public CompletableFuture<String> get(@NotNull String url) {
+        return execute(HttpMethod.GET, url, null, null, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 发送POST请求
+     *
+     * @param url         地址
+     * @param body        请求体
+     * @param contentType 请求体类型
+     * @return 响应体
+     */
+    @NotNull
+    public CompletableFuture<String> post(@NotNull String url, @Nullable String body, @Nullable CharSequence contentType) {
+        return execute(HttpMethod.POST, url, body, contentType, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 发送请求
+     * 状态码不是2xx时以 {@link IOException} 失败
+     *
+     * @param method         请求方法
+     * @param url            地址
+     * @param body           请求体 按UTF-8编码
+     * @param contentType    请求体类型
+     * @param defaultCharset 响应没有指定编码时使用的编码
+     * @return 响应体
+     */
+    @NotNull
+    public CompletableFuture<String> execute(@NotNull HttpMethod method, @NotNull String url, @Nullable String body,
+                                             @Nullable CharSequence contentType, @NotNull Charset defaultCharset) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        URI uri;
+        Endpoint endpoint;
+        try {
+            uri = URI.create(url);
+            endpoint = Endpoint.of(uri);
+        } catch (IllegalArgumentException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        FixedChannelPool pool = pools.get(endpoint);
+        pool.acquire().addListener((Future<Channel> acquire) -> {
+            if (!acquire.isSuccess()) {
+                future.completeExceptionally(acquire.cause());
+                return;
+            }
+            Channel channel = acquire.getNow();
+            ResponseHandler handler = new ResponseHandler(pool, future, defaultCharset);
+            try {
+                channel.pipeline().addLast(RESPONSE_HANDLER, handler);
+            } catch (RuntimeException e) {
+                // 连接可能刚好被关闭
+                pool.release(channel);
+                future.completeExceptionally(e);
+                return;
+            }
+            handler.timeout = channel.eventLoop().schedule(
+                    () -> handler.fail(channel, new IOException("读取超时: " + url)),
+                    readTimeout, TimeUnit.MILLISECONDS
+            );
+            channel.writeAndFlush(newRequest(method, uri, endpoint, body, contentType, channel)).addListener(write -> {
+                if (!write.isSuccess()) {
+                    handler.fail(channel, write.cause());
+                }
+            });
+        });
+        return future;
+    }
+
+    private static FullHttpRequest newRequest(HttpMethod method, URI uri, Endpoint endpoint, @Nullable String body,
+                                              @Nullable CharSequence contentType, Channel channel) {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path = path + '?' + uri.getRawQuery();
+        }
+        ByteBuf content = body == null ? Unpooled.EMPTY_BUFFER : ByteBufUtil.writeUtf8(channel.alloc(), body);
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, path, content);
+        request.headers()
+                .set(HttpHeaderNames.HOST, endpoint.hostHeader())
+                .set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP)
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        if (contentType != null) {
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        }
+        return request;
+    }
+
+    /**
+     * 关闭所有连接
+     */
+    public void close() {
+        pools.close();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 初始化连接池中新建的连接
+     */
+    private final class PoolHandler extends AbstractChannelPoolHandler {
+
+        private final Endpoint endpoint;
+
+        private PoolHandler(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void channelCreated(Channel ch) {
+            ChannelPipeline pipeline = ch.pipeline();
+            if (endpoint.ssl) {
+                // 传入主机和端口 相同主机的连接可以恢复之前的TLS会话
+                SslHandler sslHandler = sslContext.newHandler(ch.alloc(), endpoint.host, endpoint.port);
+                // 默认只发送SNI 不校验证书中的主机名 需要手动开启
+                SSLEngine engine = sslHandler.engine();
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+                sslHandler.setHandshakeTimeoutMillis(connectTimeout);
+                pipeline.addLast(sslHandler);
+            }
+            pipeline.addLast(new IdleStateHandler(0, 0, IDLE_TIMEOUT))
+                    .addLast(new HttpClientCodec())
+                    .addLast(new HttpContentDecompressor())
+                    .addLast(new HttpObjectAggregator(MAX_RESPONSE_SIZE))
+                    .addLast(new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+                            // 空闲的连接直接关闭 连接池取出时会检查连接是否可用
+                            if (evt instanceof IdleStateEvent) {
+                                ctx.close();
+                                return;
+                            }
+                            super.userEventTriggered(ctx, evt);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * 处理一次请求的响应 完成后从连接上移除 并归还连接
+     */
+    private static final class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+        private final FixedChannelPool pool;
+        private final CompletableFuture<String> future;
+        private final Charset defaultCharset;
+        private ScheduledFuture<?> timeout;
+        private boolean done;
+
+        private ResponseHandler(FixedChannelPool pool, CompletableFuture<String> future, Charset defaultCharset) {
+            this.pool = pool;
+            this.future = future;
+            this.defaultCharset = defaultCharset;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            String body = response.content().toString(HttpUtil.getCharset(response, defaultCharset));
+            int code = response.status().code();
+            if (finish(ctx.channel(), !HttpUtil.isKeepAlive(response))) {
+                if (code >= 200 && code < 300) {
+                    future.complete(body);
+                } else {
+                    future.completeExceptionally(new IOException("HTTP " + response.status() + ": " + body));
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            fail(ctx.channel(), new IOException("连接已关闭"));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(ctx.channel(), cause);
+        }
+
+        private void fail(Channel channel, Throwable cause) {
+            // 超时和写入失败可能在其它线程回调 统一切换到连接的IO线程
+            if (!channel.eventLoop().inEventLoop()) {
+                channel.eventLoop().execute(() -> fail(channel, cause));
+                return;
+            }
+            if (finish(channel, true)) {
+                future.completeExceptionally(cause);
+            }
+        }
+
+        /**
+         * 结束本次请求
+         *
+         * @return 是否是第一次结束
+         */
+        private boolean finish(Channel channel, boolean close) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            if (channel.pipeline().get(RESPONSE_HANDLER) == this) {
+                channel.pipeline().remove(this);
+            }
+            if (close) {
+                channel.close();
+            }
+            pool.release(channel);
+            return true;
+        }
+    }
+
+    /**
+     * 连接池的键
+     */
+    private static final class Endpoint {
+
+        private final String host;
+        private final int port;
+        private final boolean ssl;
+
+        private Endpoint(String host, int port, boolean ssl) {
+            this.host = host;
+            this.port = port;
+            this.ssl = ssl;
+        }
+
+        private static Endpoint of(URI uri) {
+            String scheme = uri.getScheme();
+            if (uri.getHost() == null || !"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+                throw new IllegalArgumentException("不支持的地址: " + uri);
+            }
+            boolean ssl = "https".equalsIgnoreCase(scheme);
+            int port = uri.getPort() > 0 ? uri.getPort() : ssl ? 443 : 80;
+            return new Endpoint(uri.getHost(), port, ssl);
+        }
+
+        private String hostHeader() {
+            return port == (ssl ? 443 : 80) ? host : host + ':' + port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Endpoint)) {
+                return false;
+            }
+            Endpoint endpoint = (Endpoint) o;
+            return port == endpoint.port && ssl == endpoint.ssl && host.equals(endpoint.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, port, ssl);
+        }
+    }
+}
@@ -1,64 +1,188 @@
 package com.promc.payapi.http;
 
-import com.promc.payapi.PayAPI;
-import com.promc.payapi.api.payway.Payway;
+import com.promc.payapi.util.LoggerUtil;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import org.jetbrains.annotations.NotNull;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 public class HttpServer {
 
+    /**
+     * 保持连接的空闲超时(秒)
+     */
+    private static final int IDLE_TIMEOUT = 60;
+
+    private static final SharedResponse NOT_FOUND = new SharedResponse(HttpResponseStatus.NOT_FOUND, "Not Found", HttpHeaderValues.TEXT_PLAIN);
+
+    private static final SharedResponse HEALTH = new SharedResponse("OK", HttpHeaderValues.TEXT_PLAIN);
+
+    /**
+     * 启动前添加的路由
+     */
+    private final Router.Builder routes = Router.builder();
+
+    /**
+     * 监控指标 名称 - 数值
+     */
+    private final Map<String, LongSupplier> metrics = new LinkedHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile Router router;
+
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
 
-    private FullHttpResponse defaultPage;
+    /**
+     * 绑定了端口的服务端通道
+     */
+    private final List<Channel> serverChannels = new ArrayList<>();
+
+    /**
+     * 处理支付通知等阻塞请求的线程池
+     * 验签和数据库操作都比较慢 不能在IO线程中执行
+     */
+    private ThreadPoolExecutor notifyExecutor;
+
+    private SharedResponse defaultPage;
+
+    /**
+     * 接收连接的线程数
+     * 开启 SO_REUSEPORT 时每个线程各自绑定一次端口 由内核分配连接
+     */
+    private int acceptorThreads = 1;
+
+    /**
+     * IO线程数 0为Netty默认的CPU核心数*2
+     */
+    private int ioThreads = 0;
+
+    /**
+     * 是否在可用时使用epoll
+     */
+    private boolean epoll = true;
+
+    /**
+     * 是否开启 SO_REUSEPORT 只有epoll支持
+     */
+    private boolean reusePort = false;
+
+    /**
+     * 请求体的最大长度 超过时直接返回413
+     */
+    private int maxBodySize = 16384;
 
     /**
      * 启动服务端
      */
     public void start(int port) {
+        start(port, Runtime.getRuntime().availableProcessors(), 1000);
+    }
+
+    /**
+     * 启动服务端
+     *
+     * @param port            端口
+     * @param notifyThreads   处理支付通知的线程数
+     * @param notifyQueueSize 等待处理的支付通知的最大数量 超过时返回503
+     */
+    public void start(int port, int notifyThreads, int notifyQueueSize) {
         close();
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        AtomicInteger count = new AtomicInteger();
+        notifyExecutor = new ThreadPoolExecutor(
+                notifyThreads, notifyThreads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(notifyQueueSize),
+                r -> {
+                    Thread thread = new Thread(r, "PayAPI-Notify-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        notifyExecutor.allowCoreThreadTimeOut(true);
+        // 内置的路由 已经被添加过的路径不覆盖
+        router = routes
+                .routeIfAbsent(HttpMethod.GET, "/", this::sendDefaultPage, false)
+                .routeIfAbsent(HttpMethod.GET, "/health", HEALTH::send, false)
+                .routeIfAbsent(HttpMethod.GET, "/metrics", this::sendMetrics, false)
+                .build();
+        boolean useEpoll = epoll && isEpollAvailable();
+        boolean useReusePort = reusePort && useEpoll;
+        if (reusePort && !useEpoll) {
+            LoggerUtil.warn("SO_REUSEPORT 需要epoll 已忽略");
+        }
+        Class<? extends ServerSocketChannel> channelClass;
+        if (useEpoll) {
+            bossGroup = new EpollEventLoopGroup(acceptorThreads, new DefaultThreadFactory("PayAPI-Http-Boss", true));
+            workerGroup = new EpollEventLoopGroup(ioThreads, new DefaultThreadFactory("PayAPI-Http-IO", true));
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(acceptorThreads, new DefaultThreadFactory("PayAPI-Http-Boss", true));
+            workerGroup = new NioEventLoopGroup(ioThreads, new DefaultThreadFactory("PayAPI-Http-IO", true));
+            channelClass = NioServerSocketChannel.class;
+        }
         ServerBootstrap bootstrap = new ServerBootstrap()
                 .option(ChannelOption.SO_BACKLOG, 1024)
                 .group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(channelClass)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
                 .childHandler(new ChannelInitializer<Channel>() {
                     @Override
                     protected void initChannel(@NotNull Channel ch) {
                         ch.pipeline()
+                                .addLast(new IdleStateHandler(0, 0, IDLE_TIMEOUT))
                                 .addLast(new HttpServerCodec())
-                                .addLast(new HttpObjectAggregator(65535))
+                                .addLast(new HttpServerKeepAliveHandler())
+                                .addLast(new HttpObjectAggregator(maxBodySize))
                                 .addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
 
                                     @Override
                                     public void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
-                                        // 干掉图标
-                                        if ("/favicon.ico".equals(request.uri())) {
+                                        requests.increment();
+                                        Map<HttpMethod, Router.Route> methods = router.find(getPath(request.uri()));
+                                        if (methods == null) {
+                                            NOT_FOUND.send(ctx, request);
                                             return;
                                         }
-                                        // GET请求 全部发送默认页
-                                        if (request.method() == HttpMethod.GET) {
-                                            if (defaultPage != null) {
-                                                ctx.writeAndFlush(defaultPage.copy()).addListener(ChannelFutureListener.CLOSE);
-                                            }
+                                        Router.Route route = methods.get(request.method());
+                                        if (route == null) {
+                                            sendMethodNotAllowed(ctx, request, methods.keySet());
                                             return;
                                         }
-                                        // POST请求
-                                        if (request.method() == HttpMethod.POST) {
-                                            String uri = request.uri();
-                                            if (uri.startsWith("/")) {
-                                                Optional<Payway> payway = PayAPI.getAPI().getPayway(uri.substring(1));
-                                                payway.ifPresent(p -> p.notify(ctx, request));
-                                            }
+                                        if (route.isBlocking()) {
+                                            dispatch(ctx, request, route.getHandler());
+                                        } else {
+                                            route.getHandler().handle(ctx, request);
                                         }
                                     }
 
@@ -66,25 +190,253 @@ public class HttpServer {
                                     public void channelReadComplete(ChannelHandlerContext ctx) {
                                         ctx.flush();
                                     }
+
+                                    @Override
+                                    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+                                        // 空闲的保持连接直接关闭
+                                        if (evt instanceof IdleStateEvent) {
+                                            ctx.close();
+                                            return;
+                                        }
+                                        super.userEventTriggered(ctx, evt);
+                                    }
                                 });
                     }
                 });
 
+        if (useReusePort) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+
         try {
-            bootstrap.bind(port).sync();
+            // 不开启 SO_REUSEPORT 时同一个端口只能绑定一次
+            int binds = useReusePort ? acceptorThreads : 1;
+            for (int i = 0; i < binds; i++) {
+                serverChannels.add(bootstrap.bind(port).sync().channel());
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 添加路由 需要在启动前添加
+     *
+     * @param method   请求方法
+     * @param path     路径 不包含查询参数
+     * @param handler  处理器
+     * @param blocking 是否需要在业务线程池中执行
+     */
+    public void route(@NotNull HttpMethod method, @NotNull String path, @NotNull Router.Handler handler, boolean blocking) {
+        routes.route(method, path, handler, blocking);
+    }
+
+    /**
+     * 添加监控指标 在 /metrics 中输出
+     *
+     * @param name  名称
+     * @param value 数值
+     */
+    public void addMetric(@NotNull String name, @NotNull LongSupplier value) {
+        synchronized (metrics) {
+            metrics.put(name, value);
+        }
+    }
+
+    /**
+     * 去掉查询参数
+     */
+    private static String getPath(String uri) {
+        int index = uri.indexOf('?');
+        return index < 0 ? uri : uri.substring(0, index);
+    }
+
+    private void sendDefaultPage(ChannelHandlerContext ctx, FullHttpRequest request) {
+        if (defaultPage != null) {
+            defaultPage.send(ctx, request);
+        } else {
+            NOT_FOUND.send(ctx, request);
+        }
+    }
+
+    /**
+     * 以Prometheus文本格式输出监控指标
+     */
+    private void sendMetrics(ChannelHandlerContext ctx, FullHttpRequest request) {
+        StringBuilder builder = new StringBuilder(256);
+        builder.append("payapi_http_requests_total ").append(requests.sum()).append('\n');
+        builder.append("payapi_http_rejected_total ").append(rejected.sum()).append('\n');
+        ThreadPoolExecutor executor = notifyExecutor;
+        builder.append("payapi_http_queue_size ").append(executor.getQueue().size()).append('\n');
+        builder.append("payapi_http_active_threads ").append(executor.getActiveCount()).append('\n');
+        synchronized (metrics) {
+            metrics.forEach((name, value) -> builder.append(name).append(' ').append(value.getAsLong()).append('\n'));
+        }
+        sendResponse(ctx, request, HttpResponseStatus.OK, builder, "text/plain; version=0.0.4");
+    }
+
+    private static void sendMethodNotAllowed(ChannelHandlerContext ctx, HttpRequest request, Set<HttpMethod> allowed) {
+        StringJoiner allow = new StringJoiner(", ");
+        for (HttpMethod method : allowed) {
+            allow.add(method.name());
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.METHOD_NOT_ALLOWED);
+        response.headers()
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, 0)
+                .set(HttpHeaderNames.ALLOW, allow.toString());
+        ctx.writeAndFlush(response);
+    }
+
+    /**
+     * epoll是否可用
+     * 服务端的Netty可能没有带epoll 找不到类时视为不可用
+     */
+    private static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * 设置线程数 需要在启动前设置
+     *
+     * @param acceptorThreads 接收连接的线程数
+     * @param ioThreads       IO线程数 0为Netty默认
+     */
+    public void setThreads(int acceptorThreads, int ioThreads) {
+        this.acceptorThreads = Math.max(1, acceptorThreads);
+        this.ioThreads = Math.max(0, ioThreads);
+    }
+
+    /**
+     * 设置请求体的最大长度 需要在启动前设置
+     * 支付通知的请求体一般只有几KB
+     *
+     * @param maxBodySize 最大长度
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * 设置传输方式 需要在启动前设置
+     *
+     * @param epoll     是否在可用时使用epoll
+     * @param reusePort 是否开启 SO_REUSEPORT
+     */
+    public void setTransport(boolean epoll, boolean reusePort) {
+        this.epoll = epoll;
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * 把请求交给业务线程池处理
+     * 线程池已满时直接返回503 支付平台稍后会重试
+     */
+    private void dispatch(ChannelHandlerContext ctx, FullHttpRequest request, Router.Handler handler) {
+        // channelRead0 返回后请求会被释放 由处理线程负责释放
+        request.retain();
+        // 处理完成前不读取同一连接的下一个请求 保证响应顺序
+        ctx.channel().config().setAutoRead(false);
+        NotifyTask task = new NotifyTask(ctx, request, handler);
+        try {
+            notifyExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject();
+        }
+    }
+
+    /**
+     * 在业务线程池中执行的请求
+     */
+    private final class NotifyTask implements Runnable {
+
+        private final ChannelHandlerContext ctx;
+        private final FullHttpRequest request;
+        private final Router.Handler handler;
+
+        private NotifyTask(ChannelHandlerContext ctx, FullHttpRequest request, Router.Handler handler) {
+            this.ctx = ctx;
+            this.request = request;
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handler.handle(ctx, request);
+            } catch (Exception e) {
+                // 处理器只会在发送响应前抛出异常 格式错误等由处理器自己响应
+                LoggerUtil.error("处理请求 " + request.uri() + " 失败: " + e.getMessage());
+                sendError(ctx, request, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            } finally {
+                request.release();
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
+
+        /**
+         * 没有执行就被放弃 返回503 支付平台稍后会重试
+         */
+        private void reject() {
+            rejected.increment();
+            sendError(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            request.release();
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * 发送响应 内容使用池化的内存
+     *
+     * @param ctx         上下文
+     * @param request     请求
+     * @param status      状态码
+     * @param content     内容
+     * @param contentType 内容类型
+     * @return 发送结果
+     */
+    @NotNull
+    public static ChannelFuture sendResponse(@NotNull ChannelHandlerContext ctx, @NotNull HttpRequest request, @NotNull HttpResponseStatus status,
+                                             @NotNull CharSequence content, @NotNull CharSequence contentType) {
+        FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), status, ByteBufUtil.writeUtf8(ctx.alloc(), content));
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return ctx.writeAndFlush(response);
+    }
+
+    /**
+     * 发送错误 并关闭连接
+     */
+    private static void sendError(ChannelHandlerContext ctx, HttpRequest request, HttpResponseStatus status) {
+        FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), status);
+        response.headers()
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, 0)
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(response);
+    }
+
     /**
      * 关闭HTTP服务器
+     * 先停止接收连接 再放弃还在排队的通知 最后关闭IO线程
      */
     public void close() {
         if (bossGroup == null || workerGroup == null) {
             return;
         }
+        for (Channel channel : serverChannels) {
+            channel.close().awaitUninterruptibly();
+        }
+        serverChannels.clear();
         bossGroup.shutdownGracefully();
+        // 插件关闭后不能再回到主线程 不等待排队的通知 直接返回503 支付平台稍后会重试
+        for (Runnable task : notifyExecutor.shutdownNow()) {
+            ((NotifyTask) task).reject();
+        }
+        // 响应需要IO线程发送 最后关闭
         workerGroup.shutdownGracefully();
     }
 
@@ -94,12 +446,6 @@ public class HttpServer {
      * @param html 内容
      */
     public void setDefaultPage(@NotNull String html) {
-        FullHttpResponse response = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(html, StandardCharsets.UTF_8)
-        );
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-        defaultPage = response;
+        defaultPage = new SharedResponse(html, "text/html; charset=UTF-8");
     }
 }
\ No newline at end of file
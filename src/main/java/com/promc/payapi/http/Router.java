@@ -0,0 +1,127 @@
+package com.promc.payapi.http;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 路由表
+ * 启动时构建 之后不再修改 按路径直接查找处理器
+ */
+public final class Router {
+
+    private final Map<String, Map<HttpMethod, Route>> routes;
+
+    private Router(Map<String, Map<HttpMethod, Route>> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * 查找路径的所有处理器
+     *
+     * @param path 路径 不包含查询参数
+     * @return 请求方法 - 处理器 路径不存在时为null
+     */
+    @Nullable
+    public Map<HttpMethod, Route> find(@NotNull String path) {
+        return routes.get(path);
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * 请求处理器
+     */
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * 处理请求 需要负责发送响应
+         * 请求体格式错误等也需要自己响应 抛出异常时会返回500 所以发送响应后不能再抛出异常
+         *
+         * @param ctx     上下文
+         * @param request 请求
+         */
+        void handle(@NotNull ChannelHandlerContext ctx, @NotNull FullHttpRequest request);
+    }
+
+    /**
+     * 路由
+     */
+    public static final class Route {
+
+        private final Handler handler;
+        private final boolean blocking;
+
+        private Route(Handler handler, boolean blocking) {
+            this.handler = handler;
+            this.blocking = blocking;
+        }
+
+        @NotNull
+        public Handler getHandler() {
+            return handler;
+        }
+
+        /**
+         * 是否需要在业务线程池中执行
+         * 会访问数据库或验签的处理器不能在IO线程中执行
+         *
+         * @return 是否阻塞
+         */
+        public boolean isBlocking() {
+            return blocking;
+        }
+    }
+
+    public static final class Builder {
+
+        private final Map<String, Map<HttpMethod, Route>> routes = new HashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * 添加路由 相同的路径和方法会覆盖之前的路由
+         *
+         * @param method   请求方法
+         * @param path     路径
+         * @param handler  处理器
+         * @param blocking 是否需要在业务线程池中执行
+         * @return this
+         */
+        @NotNull
+        public Builder route(@NotNull HttpMethod method, @NotNull String path, @NotNull Handler handler, boolean blocking) {
+            routes.computeIfAbsent(path, k -> new LinkedHashMap<>()).put(method, new Route(handler, blocking));
+            return this;
+        }
+
+        /**
+         * 路径不存在时才添加路由
+         */
+        @NotNull
+        public Builder routeIfAbsent(@NotNull HttpMethod method, @NotNull String path, @NotNull Handler handler, boolean blocking) {
+            if (!routes.containsKey(path)) {
+                route(method, path, handler, blocking);
+            }
+            return this;
+        }
+
+        @NotNull
+        public Router build() {
+            Map<String, Map<HttpMethod, Route>> copy = new HashMap<>(routes.size() * 2);
+            routes.forEach((path, methods) -> copy.put(path, Collections.unmodifiableMap(new LinkedHashMap<>(methods))));
+            return new Router(Collections.unmodifiableMap(copy));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.promc.payapi.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 内容固定的响应
+ * 内容只编码一次 保存在只读且不会被释放的缓冲区中 每次发送只创建一个共享内容的视图
+ * <p>
+ * 使用堆内存而不是直接内存 不会被释放的直接内存只能等进程退出才回收 每次重载插件都会泄漏一份
+ * 堆内存随插件的类加载器一起被回收 发送时Netty复制到池化的直接内存 内容都很小 代价可以忽略
+ */
+public class SharedResponse {
+
+    private final HttpResponseStatus status;
+
+    private final CharSequence contentType;
+
+    private final ByteBuf content;
+
+    public SharedResponse(@NotNull String content, @NotNull CharSequence contentType) {
+        this(HttpResponseStatus.OK, content, contentType);
+    }
+
+    public SharedResponse(@NotNull HttpResponseStatus status, @NotNull String content, @NotNull CharSequence contentType) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        this.status = status;
+        this.contentType = contentType;
+        this.content = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(bytes).asReadOnly());
+    }
+
+    /**
+     * 发送响应
+     * 连接是否保持由 {@link HttpServerKeepAliveHandler} 根据请求决定
+     *
+     * @param ctx     上下文
+     * @param request 请求
+     * @return 发送结果
+     */
+    @NotNull
+    public ChannelFuture send(@NotNull ChannelHandlerContext ctx, @NotNull HttpRequest request) {
+        FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), status, content.duplicate());
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        return ctx.writeAndFlush(response);
+    }
+}
@@ -7,6 +7,8 @@ import com.comphenix.protocol.wrappers.EnumWrappers.PlayerDigType;
 import com.promc.payapi.PayAPI;
 import com.promc.payapi.api.order.Order;
 import com.promc.payapi.event.PayCloseEvent;
+import com.promc.payapi.session.PaySession;
+import com.promc.payapi.session.PaySessionRegistry;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Listener;
@@ -18,8 +20,6 @@ import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.player.PlayerChangedMainHandEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
 
-import java.util.*;
-
 /**
  * 支付监听器
  */
@@ -32,13 +32,21 @@ public class PayListener extends PacketAdapter implements Listener {
     /**
      * 监听服务器发出的 WindowItems 数据包
      * 如果 WindowItems 包被重新发送 则退出支付
+     * 所有玩家的背包同步都会经过这里 没有人在支付时直接返回
      */
     @Override
     public void onPacketSending(PacketEvent event) {
-        Map<UUID, Order> paying = ((PayAPI) plugin).getPayingOrders();
-        Player player = event.getPlayer();
-        Order order = paying.remove(player.getUniqueId());
-        if (order != null) {
+        PaySessionRegistry sessions = ((PayAPI) plugin).getSessions();
+        if (sessions.isEmpty()) {
+            return;
+        }
+        PaySession session = sessions.get(event.getPlayer().getUniqueId());
+        if (session == null || session.isMapPacket(event.getPacket().getHandle())) {
+            // 不在支付中 或者是插件自己发出的地图物品
+            return;
+        }
+        if (sessions.close(session)) {
+            Order order = session.getOrder();
             // 拉回主线程
             Bukkit.getScheduler().runTask(plugin, () -> {
                 PayCloseEvent payCloseEvent = new PayCloseEvent((PayAPI) plugin, order);
@@ -7,11 +7,12 @@ import com.promc.payapi.api.order.Order;
 import com.promc.payapi.api.payway.Payway;
 import com.promc.payapi.util.HttpUtil;
 import com.promc.payapi.util.LoggerUtil;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
+import com.promc.payapi.http.FormDecoder;
+import com.promc.payapi.http.SharedResponse;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
@@ -21,15 +22,27 @@ import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 支付宝 支付方式
  */
 public class AliPayway implements Payway {
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    /**
+     * 通知处理成功/失败的响应
+     */
+    private static final SharedResponse SUCCESS = new SharedResponse("success", HttpHeaderValues.TEXT_PLAIN);
+    private static final SharedResponse FAILURE = new SharedResponse("failure", HttpHeaderValues.TEXT_PLAIN);
+
+    /**
+     * 多个订单可能同时发起支付 使用线程安全的格式化
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
     /**
      * 支付宝网关
@@ -44,17 +57,92 @@ public class AliPayway implements Payway {
     /**
      * 支付宝商户平台中交换商户公钥即可获得支付宝公钥
      */
-    private final String alipayPublicKey;
+    private final PublicKey alipayPublicKey;
 
     /**
      * 商户私钥 与自己创建的商户公钥对应的商户私钥
      */
-    private final String merchantPrivateKey;
+    private final PrivateKey merchantPrivateKey;
 
+    /**
+     * 每个线程一个已经初始化好的签名对象
+     * sign/verify 之后签名对象会回到初始化后的状态 可以直接复用
+     */
+    private final ThreadLocal<Signature> signer = ThreadLocal.withInitial(this::newSigner);
+    private final ThreadLocal<Signature> verifier = ThreadLocal.withInitial(this::newVerifier);
+
+    /**
+     * 密钥在创建时解析 无效的密钥会直接抛出异常
+     *
+     * @throws IllegalArgumentException 无效的密钥
+     */
     public AliPayway(String appId, String alipayPublicKey, String merchantPrivateKey) {
         this.appId = appId;
-        this.alipayPublicKey = alipayPublicKey;
-        this.merchantPrivateKey = merchantPrivateKey;
+        this.alipayPublicKey = parsePublicKey(alipayPublicKey);
+        this.merchantPrivateKey = parsePrivateKey(merchantPrivateKey);
+        // 创建一次签名对象 检查算法和密钥是否可用
+        newSigner();
+        newVerifier();
+    }
+
+    /**
+     * 解析PKCS8格式的私钥
+     *
+     * @param privateKey Base64编码的私钥
+     * @return 私钥
+     */
+    @NotNull
+    public static PrivateKey parsePrivateKey(@NotNull String privateKey) {
+        try {
+            byte[] encodedKey = Base64.getDecoder().decode(privateKey.getBytes(StandardCharsets.UTF_8));
+            return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("不支持的加密方式", e);
+        } catch (InvalidKeySpecException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的商户私钥", e);
+        }
+    }
+
+    /**
+     * 解析X509格式的公钥
+     *
+     * @param publicKey Base64编码的公钥
+     * @return 公钥
+     */
+    @NotNull
+    public static PublicKey parsePublicKey(@NotNull String publicKey) {
+        try {
+            byte[] encodedKey = Base64.getDecoder().decode(publicKey.getBytes(StandardCharsets.UTF_8));
+            return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encodedKey));
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("不支持的加密方式", e);
+        } catch (InvalidKeySpecException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的支付宝公钥", e);
+        }
+    }
+
+    private Signature newSigner() {
+        try {
+            Signature signature = Signature.getInstance("SHA256WithRSA");
+            signature.initSign(merchantPrivateKey);
+            return signature;
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("不支持的加密方式", e);
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("无效的商户私钥", e);
+        }
+    }
+
+    private Signature newVerifier() {
+        try {
+            Signature signature = Signature.getInstance("SHA256WithRSA");
+            signature.initVerify(alipayPublicKey);
+            return signature;
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("不支持的加密方式", e);
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("无效的支付宝公钥", e);
+        }
     }
 
     public static String urlEncode(String text) {
@@ -75,6 +163,7 @@ public class AliPayway implements Payway {
 
     /**
      * RSA2签名算法
+     * 每次都会解析密钥 签名自己的请求请使用 {@link #rsaSign(String)}
      *
      * @param content    内容
      * @param privateKey 密钥
@@ -83,23 +172,39 @@ public class AliPayway implements Payway {
     @NotNull
     public static String rsaSign(@NotNull String content, @NotNull String privateKey) {
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            byte[] encodedKey = Base64.getDecoder().decode(privateKey.getBytes(StandardCharsets.UTF_8));
-            PrivateKey priKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
             Signature signature = Signature.getInstance("SHA256WithRSA");
-            signature.initSign(priKey);
+            signature.initSign(parsePrivateKey(privateKey));
             signature.update(content.getBytes(StandardCharsets.UTF_8));
             byte[] signed = signature.sign();
             return Base64.getEncoder().encodeToString(signed);
         } catch (NoSuchAlgorithmException e) {
             throw new UnsupportedOperationException("不支持的加密方式", e);
-        } catch (InvalidKeySpecException | InvalidKeyException e) {
+        } catch (InvalidKeyException e) {
             throw new IllegalArgumentException("无效的密钥", e);
         } catch (SignatureException e) {
             throw new IllegalArgumentException("签名异常", e);
         }
     }
 
+    /**
+     * 使用商户私钥进行RSA2签名
+     *
+     * @param content 内容
+     * @return 密文
+     */
+    @NotNull
+    public String rsaSign(@NotNull String content) {
+        Signature signature = signer.get();
+        try {
+            signature.update(content.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(signature.sign());
+        } catch (SignatureException e) {
+            // 签名对象的状态可能已经不对了 下次重新创建
+            signer.remove();
+            throw new IllegalArgumentException("签名异常", e);
+        }
+    }
+
     @Override
     @NotNull
     public String getIdentifier() {
@@ -108,7 +213,24 @@ public class AliPayway implements Payway {
 
     @Override
     public String nativePay(@NotNull Order order) {
-        String time = DATE_FORMAT.format(System.currentTimeMillis());
+        return parseQrCode(HttpUtil.post(buildPrecreateUrl(order)));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<String> nativePayAsync(@NotNull Order order) {
+        return HttpUtil.postAsync(buildPrecreateUrl(order)).thenApply(this::parseQrCode);
+    }
+
+    /**
+     * 构建预下单请求地址 参数和签名都在地址中
+     *
+     * @param order 订单
+     * @return 请求地址
+     */
+    @NotNull
+    private String buildPrecreateUrl(@NotNull Order order) {
+        String time = DATE_FORMAT.format(Instant.now());
 
         Map<String, Object> bizContent = new HashMap<>(3);
         bizContent.put("out_trade_no", order.getId());
@@ -132,7 +254,7 @@ public class AliPayway implements Payway {
                 .toArray(String[]::new)
         );
 
-        String sign = rsaSign(paramsString, merchantPrivateKey);
+        String sign = rsaSign(paramsString);
         params.put("sign", sign);
 
         String join = String.join("&", params.entrySet().stream()
@@ -142,9 +264,18 @@ public class AliPayway implements Payway {
         );
 
         LoggerUtil.debug("真正请求URL: " + ALIPAY_GATEWAY);
-        String body = HttpUtil.post(ALIPAY_GATEWAY + "?" + join);
-        LoggerUtil.debug("请求结果: " + body);
+        return ALIPAY_GATEWAY + "?" + join;
+    }
 
+    /**
+     * 从预下单结果中取出二维码地址
+     *
+     * @param body 请求结果
+     * @return 二维码地址
+     */
+    @Nullable
+    private String parseQrCode(String body) {
+        LoggerUtil.debug("请求结果: " + body);
         try {
             JsonObject jsonObject = PayAPI.GSON.fromJson(body, JsonObject.class);
             JsonObject response = jsonObject.getAsJsonObject("alipay_trade_precreate_response");
@@ -156,29 +287,23 @@ public class AliPayway implements Payway {
 
     @Override
     public void notify(@NotNull ChannelHandlerContext ctx, @NotNull FullHttpRequest request) {
-        String body = request.content().toString(StandardCharsets.UTF_8);
-        String[] args = body.split("&");
-        Map<String, String> params = new HashMap<>(args.length);
-        for (String arg : args) {
-            String[] split = arg.split("=");
-            params.put(split[0], urlDecode(split[1]));
+        Map<String, String> params;
+        try {
+            params = FormDecoder.decode(request.content());
+        } catch (IllegalArgumentException e) {
+            FAILURE.send(ctx, request);
+            return;
         }
         String sign = params.get("sign");
         String content = getSignCheckContent(params);
 
         // 签名验证 避免伪造请求
-        boolean verify = verify(content, sign);
+        boolean verify = sign != null && verify(content, sign);
         if (verify) {
             PayAPI.getAPI().markPay(params);
         }
 
-        FullHttpResponse response = new DefaultFullHttpResponse(
-                request.protocolVersion(),
-                HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(verify ? "success" : "failure", StandardCharsets.UTF_8)
-        );
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        (verify ? SUCCESS : FAILURE).send(ctx, request);
     }
 
     /**
@@ -214,16 +339,20 @@ public class AliPayway implements Payway {
      * @return 是否通过
      */
     public boolean verify(@NotNull String content, @NotNull String sign) {
+        byte[] signBytes;
+        try {
+            signBytes = Base64.getDecoder().decode(sign.getBytes(StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException e) {
+            // 签名不是Base64 肯定是伪造的
+            return false;
+        }
+        Signature signature = verifier.get();
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            byte[] encodedKey = Base64.getDecoder().decode(alipayPublicKey.getBytes());
-            PublicKey pubKey = keyFactory.generatePublic(new X509EncodedKeySpec(encodedKey));
-            Signature signature = Signature.getInstance("SHA256WithRSA");
-            signature.initVerify(pubKey);
             signature.update(content.getBytes(StandardCharsets.UTF_8));
-            return signature.verify(Base64.getDecoder().decode(sign.getBytes()));
-        } catch (Exception e) {
-            throw new IllegalStateException("签名验证出错", e);
+            return signature.verify(signBytes);
+        } catch (SignatureException e) {
+            verifier.remove();
+            return false;
         }
     }
 }
@@ -1,6 +1,7 @@
 package com.promc.payapi.payway;
 
 import com.promc.payapi.payway.paywayinf.TencentPayway;
+import com.promc.payapi.payway.paywayinf.TencentSigner;
 import org.jetbrains.annotations.NotNull;
 
 public class WeChatPayway extends TencentPayway {
@@ -9,6 +10,10 @@ public class WeChatPayway extends TencentPayway {
         super(appId, merchantId, merchantKey);
     }
 
+    public WeChatPayway(String appId, String merchantId, String merchantKey, @NotNull TencentSigner.SignType signType) {
+        super(appId, merchantId, merchantKey, signType);
+    }
+
     @Override
     public @NotNull String getIdentifier() {
         return "wxpay";
@@ -5,33 +5,55 @@ import com.promc.payapi.api.order.Order;
 import com.promc.payapi.api.payway.Payway;
 import com.promc.payapi.util.HttpUtil;
 import com.promc.payapi.util.LoggerUtil;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
+import com.promc.payapi.http.SharedResponse;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public abstract class TencentPayway implements Payway {
 
+    /**
+     * 通知处理成功/失败的响应
+     */
+    protected static final SharedResponse SUCCESS = new SharedResponse("<xml>" +
+            "<return_code>SUCCESS</return_code>" +
+            "<return_msg>OK</return_msg>" +
+            "</xml>", HttpHeaderValues.TEXT_PLAIN);
+    protected static final SharedResponse FAILURE = new SharedResponse("<xml>" +
+            "<return_code>FAIL</return_code>" +
+            "<return_msg>FAIL</return_msg>" +
+            "</xml>", HttpHeaderValues.TEXT_PLAIN);
+
     protected static final Pattern COMPILE = Pattern.compile("<code_url>.*</code_url>");
 
+    /**
+     * 查找实现的开销比较大 只创建一次
+     * 配置完成后创建解析器是线程安全的 不支持DTD和外部实体 防止XXE
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
     /**
      * 微信公众平台中创建的公众号/小程序的APPID
      * QQ钱包不需要
@@ -48,10 +70,20 @@ public abstract class TencentPayway implements Payway {
      */
     protected final String merchantKey;
 
+    /**
+     * 签名工具 下单和验证通知共用
+     */
+    protected final TencentSigner signer;
+
     protected TencentPayway(String appId, String merchantId, String merchantKey) {
+        this(appId, merchantId, merchantKey, TencentSigner.SignType.MD5);
+    }
+
+    protected TencentPayway(String appId, String merchantId, String merchantKey, @NotNull TencentSigner.SignType signType) {
         this.appId = appId;
         this.merchantId = merchantId;
         this.merchantKey = merchantKey;
+        this.signer = new TencentSigner(merchantKey, signType);
     }
 
     /**
@@ -64,7 +96,23 @@ public abstract class TencentPayway implements Payway {
     @Override
     @Nullable
     public String nativePay(@NotNull Order order) {
-        // 参数要排序 这里手动排序用个有序的Map
+        return parseCodeUrl(HttpUtil.post(getUnifiedOrderUrl(), buildUnifiedOrderXml(order)));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<String> nativePayAsync(@NotNull Order order) {
+        return HttpUtil.postAsync(getUnifiedOrderUrl(), buildUnifiedOrderXml(order)).thenApply(this::parseCodeUrl);
+    }
+
+    /**
+     * 构建统一下单的请求体
+     *
+     * @param order 订单
+     * @return XML请求体
+     */
+    @NotNull
+    private String buildUnifiedOrderXml(@NotNull Order order) {
         Map<String, Object> params = new LinkedHashMap<>();
         if (appId != null && !appId.isEmpty()) {
             params.put("appid", appId);
@@ -75,27 +123,32 @@ public abstract class TencentPayway implements Payway {
         params.put("nonce_str", UUID.randomUUID().toString().replace("-", ""));
         params.put("notify_url", PayAPI.getAPI().getNotifyUrl() + "/" + getIdentifier());
         params.put("out_trade_no", order.getId());
+        if (signer.getSignType() != TencentSigner.SignType.MD5) {
+            params.put("sign_type", signer.getSignType().getValue());
+        }
         // 这里最好是传入玩家IP 但是挺麻烦的其实
         params.put("spbill_create_ip", "127.0.0.1");
         params.put("total_fee", order.getTotalFee().multiply(new BigDecimal(100)).intValue());
         params.put("trade_type", "NATIVE");
 
-        // 拼接参数
-        String paramsString = String.join("&", params.entrySet().stream()
-                .map(e -> e.getKey() + "=" + e.getValue())
-                .toArray(String[]::new)
-        );
-        // 参数最后要放上 商户密钥 进行md5加密 得到签名
-        String sign = md5(paramsString + "&key=" + merchantKey);
-        // 最后把签名也插入进去
-        params.put("sign", sign);
+        // 参数排序后加上商户密钥计算签名 最后把签名也插入进去
+        params.put("sign", signer.sign(params));
 
         LoggerUtil.debug("正在请求URL: "+ getUnifiedOrderUrl());
         LoggerUtil.debug("请求参数:" + params);
         // LoggerUtil.debug("回调地址: " + TucaPayApi.getAPI().getNotifyUrl() + "/" + getIdentifier());
-        String body = HttpUtil.post(getUnifiedOrderUrl(), mapToXml(params));
-        LoggerUtil.debug("返回结果: "+ body);
+        return mapToXml(params);
+    }
 
+    /**
+     * 从统一下单结果中取出二维码地址
+     *
+     * @param body 请求结果
+     * @return 二维码地址
+     */
+    @Nullable
+    private String parseCodeUrl(@NotNull String body) {
+        LoggerUtil.debug("返回结果: "+ body);
         Matcher matcher = COMPILE.matcher(body);
         if (matcher.find()) {
             String s = matcher.group();
@@ -106,25 +159,25 @@ public abstract class TencentPayway implements Payway {
 
     @Override
     public void notify(@NotNull ChannelHandlerContext ctx, @NotNull FullHttpRequest request) {
-        String body = request.content().toString(StandardCharsets.UTF_8);
-        Map<String, String> params = xmlToMap(body);
+        Map<String, String> params;
+        try {
+            // 直接从请求体解析 不转换为字符串
+            params = xmlToMap(new ByteBufInputStream(request.content().duplicate()));
+        } catch (IllegalStateException e) {
+            FAILURE.send(ctx, request);
+            return;
+        }
         LoggerUtil.debug("接收到付款通知: " + params);
 
         if (verify(params)) {
             if ("SUCCESS".equals(params.get("trade_state")) || "SUCCESS".equals(params.get("return_code"))) {
                 PayAPI.getAPI().markPay(params);
-                FullHttpResponse response = new DefaultFullHttpResponse(
-                        request.protocolVersion(),
-                        HttpResponseStatus.OK,
-                        Unpooled.copiedBuffer("<xml>" +
-                                "<return_code>SUCCESS</return_code>" +
-                                "<return_msg>OK</return_msg>" +
-                                "</xml>", StandardCharsets.UTF_8)
-                );
-                response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
-                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                SUCCESS.send(ctx, request);
+                return;
             }
         }
+        // 验签失败或交易未成功时也要响应 否则连接会一直挂起
+        FAILURE.send(ctx, request);
     }
 
     /**
@@ -135,28 +188,38 @@ public abstract class TencentPayway implements Payway {
      */
     @NotNull
     public Map<String, String> xmlToMap(@NotNull String xml) {
+        return xmlToMap(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 将xml输入流转为Map
+     * 通知只有根元素下一层 用流式解析直接读取子元素 不构建DOM
+     *
+     * @param xml xml
+     * @return map
+     */
+    @NotNull
+    public Map<String, String> xmlToMap(@NotNull InputStream xml) {
+        XMLStreamReader reader = null;
         try {
-            // 其实我想用 正则解析的... xml不好用
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-            dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-            dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-            dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-            dbf.setXIncludeAware(false);
-            dbf.setExpandEntityReferences(false);
-            DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
-            Document document = documentBuilder.parse(new ByteArrayInputStream(xml.getBytes()));
-            Element element = document.getDocumentElement();
-            NodeList childNodes = element.getChildNodes();
-            Map<String, String> map = new HashMap<>(childNodes.getLength());
-            for (int i = 0; i < childNodes.getLength(); i++) {
-                Node node = childNodes.item(i);
-                map.put(node.getNodeName(), node.getTextContent());
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
+            Map<String, String> map = new HashMap<>();
+            // 跳到根元素
+            reader.nextTag();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                // 读取子元素的文本 CDATA也会一起读出来
+                map.put(reader.getLocalName(), reader.getElementText());
             }
-            map.remove("#text");
             return map;
-        } catch (Exception e) {
+        } catch (XMLStreamException e) {
             throw new IllegalStateException(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                }
+            }
         }
     }
 
@@ -168,19 +231,7 @@ public abstract class TencentPayway implements Payway {
      */
     public boolean verify(@NotNull Map<String, String> params) {
         String sign = params.remove("sign");
-        List<String> keys = new ArrayList<>(params.keySet());
-        Collections.sort(keys);
-        StringBuilder content = new StringBuilder();
-
-        for (String key : keys) {
-            content.append(key).append("=").append(params.get(key)).append("&");
-        }
-        if (content.length() > 0) {
-            content.deleteCharAt(content.length() - 1);
-            content.append("&key=").append(merchantKey);
-        }
-        String localSign = md5(content.toString());
-        return sign.equals(localSign);
+        return sign != null && signer.verify(params, sign);
     }
 
     /**
@@ -190,19 +241,7 @@ public abstract class TencentPayway implements Payway {
      * @return 密文
      */
     public static String md5(String content) {
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("md5");
-            byte[] digest = md5.digest(content.getBytes(StandardCharsets.UTF_8));
-            String hexString = new BigInteger(1, digest).toString(16);
-            int length = 32 - hexString.length();
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < length; i++) {
-                sb.append('0');
-            }
-            return sb.append(hexString).toString().toUpperCase();
-        } catch (NoSuchAlgorithmException e) {
-            throw new UnsupportedOperationException("不支持的加密方式", e);
-        }
+        return TencentSigner.md5(content);
     }
 
     /**
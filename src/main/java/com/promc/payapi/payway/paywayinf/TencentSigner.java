@@ -0,0 +1,254 @@
+package com.promc.payapi.payway.paywayinf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 微信/QQ钱包签名
+ * 参数按参数名排序后 以 key=value&...&key=商户密钥 的形式直接写入摘要 不拼接中间字符串
+ * 摘要对象和缓冲区每个线程一份 签名结果为大写十六进制
+ */
+public class TencentSigner {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * 签名方式
+     */
+    public enum SignType {
+
+        MD5("MD5"),
+        HMAC_SHA256("HMAC-SHA256");
+
+        private final String value;
+
+        SignType(String value) {
+            this.value = value;
+        }
+
+        /**
+         * 请求参数 sign_type 的值
+         *
+         * @return 参数值
+         */
+        @NotNull
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * 按参数值获取签名方式
+         *
+         * @param value 参数值 不区分大小写
+         * @return 签名方式
+         */
+        @NotNull
+        public static SignType of(@NotNull String value) {
+            for (SignType type : values()) {
+                if (type.value.equalsIgnoreCase(value) || type.name().equalsIgnoreCase(value)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("不支持的签名方式: " + value);
+        }
+    }
+
+    private final SignType signType;
+
+    private final String merchantKey;
+
+    private final ThreadLocal<State> state;
+
+    public TencentSigner(@NotNull String merchantKey, @NotNull SignType signType) {
+        this.signType = signType;
+        this.merchantKey = merchantKey;
+        this.state = ThreadLocal.withInitial(this::newState);
+        // 检查算法和密钥是否可用
+        newState();
+    }
+
+    @NotNull
+    public SignType getSignType() {
+        return signType;
+    }
+
+    /**
+     * 签名
+     * 参数名为 sign 以及值为空的参数不参与签名
+     *
+     * @param params 参数
+     * @return 签名
+     */
+    @NotNull
+    public String sign(@NotNull Map<String, ?> params) {
+        String[] keys = params.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        State state = this.state.get();
+        for (String key : keys) {
+            Object value = params.get(key);
+            if (value == null || "sign".equals(key)) {
+                continue;
+            }
+            CharSequence text = value instanceof CharSequence ? (CharSequence) value : value.toString();
+            if (text.length() == 0) {
+                continue;
+            }
+            state.write(key);
+            state.write('=');
+            state.write(text);
+            state.write('&');
+        }
+        state.write("key=");
+        state.write(merchantKey);
+        return state.finish();
+    }
+
+    /**
+     * 验证签名
+     *
+     * @param params 参数
+     * @param sign   收到的签名
+     * @return 签名是否正确
+     */
+    public boolean verify(@NotNull Map<String, ?> params, @NotNull String sign) {
+        return equalsIgnoreCase(sign(params), sign);
+    }
+
+    /**
+     * 计算MD5 大写十六进制
+     *
+     * @param content 内容
+     * @return MD5
+     */
+    @NotNull
+    public static String md5(@NotNull CharSequence content) {
+        State state = MD5_STATE.get();
+        state.write(content);
+        return state.finish();
+    }
+
+    private static final ThreadLocal<State> MD5_STATE = ThreadLocal.withInitial(() -> new State(newDigest("MD5"), null));
+
+    private State newState() {
+        if (signType == SignType.MD5) {
+            return new State(newDigest("MD5"), null);
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(merchantKey.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return new State(null, mac);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("不支持的加密方式", e);
+        } catch (InvalidKeyException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的商户密钥", e);
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("不支持的加密方式", e);
+        }
+    }
+
+    /**
+     * 不提前返回的比较 避免通过响应时间猜测签名
+     */
+    private static boolean equalsIgnoreCase(String a, String b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < a.length(); i++) {
+            diff |= Character.toUpperCase(a.charAt(i)) ^ Character.toUpperCase(b.charAt(i));
+        }
+        return diff == 0;
+    }
+
+    /**
+     * 一个线程的摘要状态
+     * 字符按UTF-8编码后先写入缓冲区 缓冲区满了再写入摘要
+     */
+    private static final class State {
+
+        private final MessageDigest digest;
+        private final Mac mac;
+        private final byte[] buffer = new byte[512];
+        private final char[] hex = new char[64];
+        private int position;
+
+        private State(@Nullable MessageDigest digest, @Nullable Mac mac) {
+            this.digest = digest;
+            this.mac = mac;
+        }
+
+        private void write(char c) {
+            if (position == buffer.length) {
+                flush();
+            }
+            buffer[position++] = (byte) c;
+        }
+
+        private void write(CharSequence text) {
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                // 一个字符最多编码为4个字节
+                if (position > buffer.length - 4) {
+                    flush();
+                }
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // 不成对的代理字符 与 String.getBytes 一致替换为 ?
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void flush() {
+            if (digest != null) {
+                digest.update(buffer, 0, position);
+            } else {
+                mac.update(buffer, 0, position);
+            }
+            position = 0;
+        }
+
+        /**
+         * 完成摘要并重置 以便下次使用
+         */
+        private String finish() {
+            flush();
+            byte[] result = digest != null ? digest.digest() : mac.doFinal();
+            for (int i = 0; i < result.length; i++) {
+                hex[i << 1] = HEX[(result[i] >> 4) & 0xF];
+                hex[(i << 1) + 1] = HEX[result[i] & 0xF];
+            }
+            return new String(hex, 0, result.length << 1);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.promc.payapi.session;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 二维码地图ID分配
+ * 地图ID只存在于客户端 使用服务端不会分配到的高位区间 会话结束后回收
+ */
+public final class MapIdAllocator {
+
+    /**
+     * 第一个地图ID
+     */
+    public static final int FIRST_ID = 0x7FFF0000;
+
+    /**
+     * 可分配的地图ID数量
+     */
+    public static final int SIZE = 0x10000;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final Queue<Integer> released = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 分配一个地图ID
+     *
+     * @return 地图ID 没有空闲的ID时为-1
+     */
+    public int allocate() {
+        Integer id = released.poll();
+        if (id != null) {
+            return id;
+        }
+        while (true) {
+            int index = next.get();
+            if (index >= SIZE) {
+                // 并发释放的ID可能刚刚放回去
+                id = released.poll();
+                return id != null ? id : -1;
+            }
+            if (next.compareAndSet(index, index + 1)) {
+                return FIRST_ID + index;
+            }
+        }
+    }
+
+    /**
+     * 回收地图ID
+     *
+     * @param id 地图ID
+     */
+    public void release(int id) {
+        if (id >= FIRST_ID && id - FIRST_ID < SIZE) {
+            released.offer(id);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.promc.payapi.session;
+
+import com.promc.payapi.api.order.Order;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一个玩家的支付会话
+ * 状态只能通过CAS按 INITIATING -> SHOWING -> CLOSED/PAID 的方向变化
+ */
+public final class PaySession {
+
+    public enum State {
+
+        /**
+         * 正在向支付平台下单 还没有显示二维码
+         */
+        INITIATING,
+
+        /**
+         * 二维码已经显示在玩家手上
+         */
+        SHOWING,
+
+        /**
+         * 玩家退出支付或发起失败
+         */
+        CLOSED,
+
+        /**
+         * 支付成功
+         */
+        PAID;
+
+        /**
+         * 是否已经结束
+         *
+         * @return 是否已经结束
+         */
+        public boolean isFinished() {
+            return this == CLOSED || this == PAID;
+        }
+    }
+
+    private final UUID player;
+
+    private final Order order;
+
+    /**
+     * 显示二维码的地图ID
+     */
+    private final int mapId;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.INITIATING);
+
+    /**
+     * 插件自己发出的地图物品数据包
+     */
+    private volatile Object mapPacket;
+
+    PaySession(@NotNull UUID player, @NotNull Order order, int mapId) {
+        this.player = player;
+        this.order = order;
+        this.mapId = mapId;
+    }
+
+    @NotNull
+    public UUID getPlayer() {
+        return player;
+    }
+
+    @NotNull
+    public Order getOrder() {
+        return order;
+    }
+
+    public int getMapId() {
+        return mapId;
+    }
+
+    @NotNull
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * 记录插件自己发出的地图物品数据包
+     *
+     * @param handle 数据包
+     */
+    public void setMapPacket(@Nullable Object handle) {
+        this.mapPacket = handle;
+    }
+
+    /**
+     * 是否是插件自己发出的地图物品数据包
+     *
+     * @param handle 数据包
+     * @return 是否是同一个数据包
+     */
+    public boolean isMapPacket(@Nullable Object handle) {
+        return handle != null && handle == mapPacket;
+    }
+
+    /**
+     * 状态转换
+     *
+     * @param expect 当前状态
+     * @param update 新状态
+     * @return 当前状态不是expect时失败
+     */
+    boolean transition(@NotNull State expect, @NotNull State update) {
+        return state.compareAndSet(expect, update);
+    }
+}
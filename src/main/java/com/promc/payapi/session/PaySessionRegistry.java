@@ -0,0 +1,176 @@
+package com.promc.payapi.session;
+
+import com.promc.payapi.api.order.Order;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 支付会话注册表
+ * 会在异步任务、Netty线程和数据包线程中同时访问 每个玩家最多一个未结束的会话
+ * 会话结束后立即从表中移除
+ */
+public final class PaySessionRegistry {
+
+    private final Map<UUID, PaySession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * 未结束的会话数量 绝大部分时间为0 数据包监听器先检查它
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final MapIdAllocator mapIds = new MapIdAllocator();
+
+    /**
+     * 开始一个会话
+     * 抢占和检查是同一次操作 并发发起支付时只有一个能成功
+     *
+     * @param order 订单
+     * @return 玩家已经有会话或没有空闲的地图ID时为null
+     */
+    @Nullable
+    public PaySession begin(@NotNull Order order) {
+        int mapId = mapIds.allocate();
+        if (mapId < 0) {
+            return null;
+        }
+        PaySession session = new PaySession(order.getBuyer(), order, mapId);
+        if (sessions.putIfAbsent(order.getBuyer(), session) != null) {
+            mapIds.release(mapId);
+            return null;
+        }
+        active.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * 是否没有任何未结束的会话
+     *
+     * @return 是否为空
+     */
+    public boolean isEmpty() {
+        return active.get() == 0;
+    }
+
+    /**
+     * 二维码已经发给玩家 INITIATING -> SHOWING
+     *
+     * @param session 会话
+     * @return 会话在此之前已经结束时失败
+     */
+    public boolean show(@NotNull PaySession session) {
+        return session.transition(PaySession.State.INITIATING, PaySession.State.SHOWING);
+    }
+
+    /**
+     * 发起支付失败 INITIATING -> CLOSED
+     *
+     * @param session 会话
+     */
+    public void fail(@NotNull PaySession session) {
+        if (session.transition(PaySession.State.INITIATING, PaySession.State.CLOSED)) {
+            remove(session);
+        }
+    }
+
+    /**
+     * 玩家退出支付 SHOWING -> CLOSED
+     * 还没有显示二维码的会话不受影响
+     *
+     * @param player 玩家
+     * @return 被关闭的会话 没有正在显示的会话时为null
+     */
+    @Nullable
+    public PaySession close(@NotNull UUID player) {
+        PaySession session = sessions.get(player);
+        return session != null && close(session) ? session : null;
+    }
+
+    /**
+     * 关闭会话 SHOWING -> CLOSED
+     *
+     * @param session 会话
+     * @return 会话不是正在显示时失败
+     */
+    public boolean close(@NotNull PaySession session) {
+        if (session.transition(PaySession.State.SHOWING, PaySession.State.CLOSED)) {
+            remove(session);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 订单支付成功 INITIATING/SHOWING -> PAID
+     *
+     * @param order 订单
+     * @return 会话之前的状态 订单没有会话或会话已经结束时为null
+     */
+    @Nullable
+    public PaySession.State pay(@NotNull Order order) {
+        PaySession session = sessions.get(order.getBuyer());
+        if (session == null || session.getOrder().getId() != order.getId()) {
+            return null;
+        }
+        while (true) {
+            PaySession.State state = session.getState();
+            if (state.isFinished()) {
+                return null;
+            }
+            if (session.transition(state, PaySession.State.PAID)) {
+                remove(session);
+                return state;
+            }
+        }
+    }
+
+    private void remove(PaySession session) {
+        if (sessions.remove(session.getPlayer(), session)) {
+            active.decrementAndGet();
+            mapIds.release(session.getMapId());
+        }
+    }
+
+    /**
+     * 获取玩家的会话
+     *
+     * @param player 玩家
+     * @return 会话
+     */
+    @Nullable
+    public PaySession get(@NotNull UUID player) {
+        return sessions.get(player);
+    }
+
+    /**
+     * 玩家是否正在显示二维码
+     *
+     * @param player 玩家
+     * @return 是否正在支付
+     */
+    public boolean isShowing(@NotNull UUID player) {
+        PaySession session = sessions.get(player);
+        return session != null && session.getState() == PaySession.State.SHOWING;
+    }
+
+    /**
+     * 所有正在显示二维码的订单
+     *
+     * @return 玩家 - 订单 的快照
+     */
+    @NotNull
+    public Map<UUID, Order> snapshotShowing() {
+        Map<UUID, Order> map = new HashMap<>();
+        sessions.forEach((player, session) -> {
+            if (session.getState() == PaySession.State.SHOWING) {
+                map.put(player, session.getOrder());
+            }
+        });
+        return map;
+    }
+}
@@ -0,0 +1,34 @@
+package com.promc.payapi.storage;
+
+import com.promc.payapi.api.order.Order;
+import com.promc.payapi.api.storage.Storage;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 写入本身就是异步的存储
+ * 同步的 {@link #insertOrder(Order)} 只会放入写入队列 不等待写入完成
+ * 需要知道写入是否成功时使用这里的异步方法
+ */
+public interface AsyncWriteStorage extends Storage {
+
+    /**
+     * 异步插入订单号
+     *
+     * @param order 订单号
+     * @return 写入完成 写入失败时异常完成
+     */
+    @NotNull
+    CompletableFuture<Void> insertOrderAsync(@NotNull Order order);
+
+    /**
+     * 异步标记支付
+     *
+     * @param orderId 订单号
+     * @param info    订单信息
+     * @return 是否标记成功
+     */
+    @NotNull
+    CompletableFuture<Boolean> markPayAsync(long orderId, @NotNull String info);
+}
@@ -0,0 +1,303 @@
+package com.promc.payapi.storage;
+
+import com.promc.payapi.api.order.Order;
+import com.promc.payapi.api.storage.Storage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带缓存的存储
+ * 缓存最近创建和支付的订单 大部分查询都发生在订单创建后的几分钟内
+ * <p>
+ * 缓存是一个按订单号散列的定长数组 槽位冲突时新订单直接覆盖旧订单 所以容量固定且不需要加锁
+ * 超过存活时间的订单视为未命中
+ * <p>
+ * 缓存只在本服务器内有效 多个服务器共用一个数据库时 其它服务器修改的订单状态在存活时间内都看不到
+ */
+public class CachingStorage implements Storage {
+
+    private final Storage delegate;
+
+    private final AtomicReferenceArray<CacheEntry> table;
+
+    private final int mask;
+
+    /**
+     * 存活时间(纳秒)
+     */
+    private final long ttl;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param delegate 被包装的存储
+     * @param capacity 缓存容量 会向上取整为2的次幂
+     * @param ttl      存活时间(秒)
+     */
+    public CachingStorage(@NotNull Storage delegate, int capacity, long ttl) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("缓存容量必须大于0");
+        }
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.delegate = delegate;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+    }
+
+    @Override
+    public void createTable() {
+        delegate.createTable();
+    }
+
+    /**
+     * 创建缓存存储
+     * 被包装的存储是异步写入时 返回的缓存存储也提供异步写入 写入成功后才更新缓存
+     *
+     * @param delegate 被包装的存储
+     * @param capacity 缓存容量 会向上取整为2的次幂
+     * @param ttl      存活时间(秒)
+     * @return 缓存存储
+     */
+    @NotNull
+    public static CachingStorage create(@NotNull Storage delegate, int capacity, long ttl) {
+        if (delegate instanceof AsyncWriteStorage) {
+            return new AsyncWriteCachingStorage((AsyncWriteStorage) delegate, capacity, ttl);
+        }
+        return new CachingStorage(delegate, capacity, ttl);
+    }
+
+    @Override
+    public void insertOrder(@NotNull Order order) {
+        delegate.insertOrder(order);
+        put(order);
+    }
+
+    @Override
+    @Nullable
+    public Order selectOrderById(long orderId) {
+        int index = index(orderId);
+        CacheEntry entry = table.get(index);
+        if (entry != null && entry.orderId == orderId) {
+            if (System.nanoTime() - entry.createTime < ttl) {
+                hits.increment();
+                return copy(entry.order);
+            }
+            // 已过期 顺便清理掉
+            if (table.compareAndSet(index, entry, null)) {
+                entry = null;
+            }
+        }
+        misses.increment();
+        Order order = delegate.selectOrderById(orderId);
+        if (order != null) {
+            // 查询期间槽位被其它线程更新过时不放入 避免用旧的未支付订单覆盖刚标记支付的订单
+            table.compareAndSet(index, entry, new CacheEntry(copy(order)));
+        }
+        return order;
+    }
+
+    /**
+     * 标记支付
+     * 标记成功后直接更新缓存中的订单 支付时间与数据库中的可能相差几毫秒
+     */
+    @Override
+    public boolean markPay(long orderId, @NotNull String info) {
+        boolean success = delegate.markPay(orderId, info);
+        afterMarkPay(orderId, info, success);
+        return success;
+    }
+
+    private void afterMarkPay(long orderId, String info, boolean success) {
+        int index = index(orderId);
+        CacheEntry entry = table.get(index);
+        if (entry != null && entry.orderId == orderId) {
+            if (success) {
+                Order order = copy(entry.order);
+                order.setStatus(1);
+                order.setPayTime(new Timestamp(System.currentTimeMillis()));
+                order.setPayInfo(info);
+                table.compareAndSet(index, entry, new CacheEntry(order));
+            } else {
+                // 缓存中的订单状态可能已经过时
+                table.compareAndSet(index, entry, null);
+            }
+        }
+    }
+
+    @Override
+    @Nullable
+    public Order markPayAndGet(long orderId, @NotNull String info) {
+        Order order = delegate.markPayAndGet(orderId, info);
+        if (order != null) {
+            put(order);
+        } else {
+            invalidate(orderId);
+        }
+        return order;
+    }
+
+    /**
+     * 列表查询不经过缓存
+     */
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByBuyer(@NotNull UUID buyer, int page, int pageSize) {
+        return delegate.selectOrdersByBuyer(buyer, page, pageSize);
+    }
+
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByStatus(int status, @NotNull Timestamp since, int limit) {
+        return delegate.selectOrdersByStatus(status, since, limit);
+    }
+
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByTime(@NotNull Timestamp from, @NotNull Timestamp to, @Nullable Order after, int limit) {
+        return delegate.selectOrdersByTime(from, to, after, limit);
+    }
+
+    @Override
+    public long leaseWorkerId(long dataCenterId, @NotNull String owner, long expireTime) {
+        return delegate.leaseWorkerId(dataCenterId, owner, expireTime);
+    }
+
+    @Override
+    public boolean renewWorkerId(long dataCenterId, long workerId, @NotNull String owner, long expireTime) {
+        return delegate.renewWorkerId(dataCenterId, workerId, owner, expireTime);
+    }
+
+    @Override
+    public void releaseWorkerId(long dataCenterId, long workerId, @NotNull String owner) {
+        delegate.releaseWorkerId(dataCenterId, workerId, owner);
+    }
+
+    /**
+     * 获取被包装的存储
+     *
+     * @return 存储
+     */
+    @NotNull
+    public Storage getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * 使缓存中的订单失效
+     *
+     * @param orderId 订单号
+     */
+    public void invalidate(long orderId) {
+        int index = index(orderId);
+        CacheEntry entry = table.get(index);
+        if (entry != null && entry.orderId == orderId) {
+            table.compareAndSet(index, entry, null);
+        }
+    }
+
+    /**
+     * 获取命中次数
+     *
+     * @return 命中次数
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * 获取未命中次数
+     *
+     * @return 未命中次数
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private void put(Order order) {
+        table.set(index(order.getId()), new CacheEntry(copy(order)));
+    }
+
+    /**
+     * 订单号的低位是序列号 高位是时间戳 混合一下让槽位分布更均匀
+     */
+    private int index(long orderId) {
+        long h = orderId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * 复制订单 避免调用者修改缓存中的订单
+     */
+    private static Order copy(Order order) {
+        Order copy = new Order();
+        copy.setId(order.getId());
+        copy.setBuyer(order.getBuyer());
+        copy.setSubject(order.getSubject());
+        copy.setTotalFee(order.getTotalFee());
+        copy.setStatus(order.getStatus());
+        copy.setCreateTime(order.getCreateTime());
+        copy.setPayTime(order.getPayTime());
+        copy.setPayInfo(order.getPayInfo());
+        return copy;
+    }
+
+    /**
+     * 包装异步写入存储的缓存存储
+     * 插入订单写入成功后才放入缓存 写入失败的订单不会出现在缓存中
+     */
+    private static final class AsyncWriteCachingStorage extends CachingStorage implements AsyncWriteStorage {
+
+        private final AsyncWriteStorage writer;
+
+        private AsyncWriteCachingStorage(AsyncWriteStorage delegate, int capacity, long ttl) {
+            super(delegate, capacity, ttl);
+            this.writer = delegate;
+        }
+
+        /**
+         * 与被包装的存储一样只放入写入队列 不等待写入完成
+         */
+        @Override
+        public void insertOrder(@NotNull Order order) {
+            insertOrderAsync(order);
+        }
+
+        @Override
+        @NotNull
+        public CompletableFuture<Void> insertOrderAsync(@NotNull Order order) {
+            return writer.insertOrderAsync(order).thenRun(() -> super.put(order));
+        }
+
+        @Override
+        @NotNull
+        public CompletableFuture<Boolean> markPayAsync(long orderId, @NotNull String info) {
+            return writer.markPayAsync(orderId, info).thenApply(success -> {
+                super.afterMarkPay(orderId, info, success);
+                return success;
+            });
+        }
+    }
+
+    private static final class CacheEntry {
+
+        private final long orderId;
+        private final Order order;
+        private final long createTime = System.nanoTime();
+
+        private CacheEntry(Order order) {
+            this.orderId = order.getId();
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.promc.payapi.storage;
+
+import com.promc.payapi.api.order.Order;
+import com.promc.payapi.api.storage.AsyncStorage;
+import com.promc.payapi.api.storage.Storage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 基于线程池的异步存储
+ * 线程数与数据库连接池大小一致 队列有界 队列满时直接返回失败的结果 不会阻塞调用者
+ */
+public class ExecutorAsyncStorage implements AsyncStorage {
+
+    private final Storage storage;
+
+    private final ThreadPoolExecutor executor;
+
+    public ExecutorAsyncStorage(@NotNull Storage storage, int threads, int queueSize) {
+        this.storage = storage;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                threads, threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, "PayAPI-Storage-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Void> insertOrder(@NotNull Order order) {
+        if (storage instanceof AsyncWriteStorage) {
+            // 本身就是异步写入 不需要再占用线程
+            return ((AsyncWriteStorage) storage).insertOrderAsync(order);
+        }
+        return supply(() -> {
+            storage.insertOrder(order);
+            return null;
+        });
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Order> selectOrderById(long orderId) {
+        return supply(() -> storage.selectOrderById(orderId));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Boolean> markPay(long orderId, @NotNull String info) {
+        if (storage instanceof AsyncWriteStorage) {
+            return ((AsyncWriteStorage) storage).markPayAsync(orderId, info);
+        }
+        return supply(() -> storage.markPay(orderId, info));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Order> markPayAndGet(long orderId, @NotNull String info) {
+        return supply(() -> storage.markPayAndGet(orderId, info));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<List<Order>> selectOrdersByBuyer(@NotNull UUID buyer, int page, int pageSize) {
+        return supply(() -> storage.selectOrdersByBuyer(buyer, page, pageSize));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<List<Order>> selectOrdersByStatus(int status, @NotNull Timestamp since, int limit) {
+        return supply(() -> storage.selectOrdersByStatus(status, since, limit));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<List<Order>> selectOrdersByTime(@NotNull Timestamp from, @NotNull Timestamp to, @Nullable Order after, int limit) {
+        return supply(() -> storage.selectOrdersByTime(from, to, after, limit));
+    }
+
+    @Override
+    @NotNull
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * 关闭线程池 并等待已提交的操作完成
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 提交到线程池
+     * 线程池已满或已关闭时返回失败的结果
+     */
+    private <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+}
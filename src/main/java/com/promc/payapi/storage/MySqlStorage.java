@@ -1,11 +1,11 @@
 package com.promc.payapi.storage;
 
+import com.promc.payapi.api.order.Order;
 import com.promc.payapi.api.storage.Storage;
+import org.jetbrains.annotations.NotNull;
 
 import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.*;
 
 public class MySqlStorage extends SQLStorage {
 
@@ -22,7 +22,9 @@ public class MySqlStorage extends SQLStorage {
             statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + Storage.TABLE_NAME + "` (\n" +
                     "    `id` bigint NOT NULL COMMENT '订单号',\n" +
                     "    `subject` varchar(255) NOT NULL COMMENT '订单标题',\n" +
-                    "    `buyer` varchar(255) NOT NULL COMMENT '买家名称',\n" +
+                    (binaryBuyer
+                            ? "    `buyer` binary(16) NOT NULL COMMENT '买家UUID',\n"
+                            : "    `buyer` varchar(255) NOT NULL COMMENT '买家名称',\n") +
                     "    `total_fee` float(11,2) NOT NULL COMMENT '订单金额',\n" +
                     "    `status` int(1) NOT NULL COMMENT '订单状态',\n" +
                     "    `create_time` datetime NOT NULL COMMENT '订单创建时间',\n" +
@@ -30,6 +32,79 @@ public class MySqlStorage extends SQLStorage {
                     "    `pay_info` text DEFAULT NULL COMMENT '订单支付信息',\n" +
                     "    PRIMARY KEY (`id`)\n" +
                     ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + Storage.WORKER_TABLE_NAME + "` (\n" +
+                    "    `data_center_id` int NOT NULL COMMENT '数据中心ID',\n" +
+                    "    `worker_id` int NOT NULL COMMENT '工作ID',\n" +
+                    "    `owner` varchar(64) NOT NULL COMMENT '租用者',\n" +
+                    "    `expire_time` bigint NOT NULL COMMENT '租约过期时间',\n" +
+                    "    PRIMARY KEY (`data_center_id`, `worker_id`)\n" +
+                    ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+            setupBuyerColumn(connection);
+            createIndexes(connection);
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    /**
+     * 新增一个二进制列并转换数据 再替换掉原来的列
+     * MySQL的DDL不在事务中 上次迁移中断留下的临时列会先删除
+     */
+    @Override
+    protected void migrateBuyerToBinary(@NotNull Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = connection.getMetaData().getColumns(connection.getCatalog(), null, Storage.TABLE_NAME, "buyer_bin")) {
+                if (resultSet.next()) {
+                    statement.executeUpdate("ALTER TABLE `" + Storage.TABLE_NAME + "` DROP COLUMN `buyer_bin`;");
+                }
+            }
+            statement.executeUpdate("ALTER TABLE `" + Storage.TABLE_NAME + "` ADD COLUMN `buyer_bin` binary(16) NULL AFTER `buyer`;");
+            statement.executeUpdate("UPDATE `" + Storage.TABLE_NAME + "` SET `buyer_bin` = UNHEX(REPLACE(`buyer`, '-', ''));");
+            // 先删除买家索引 之后由 createIndexes 在新列上重建
+            String dropIndex = getIndexes(connection).contains("idx_buyer_create_time") ? "DROP INDEX `idx_buyer_create_time`, " : "";
+            statement.executeUpdate("ALTER TABLE `" + Storage.TABLE_NAME + "` " + dropIndex +
+                    "DROP COLUMN `buyer`, CHANGE `buyer_bin` `buyer` binary(16) NOT NULL COMMENT '买家UUID';");
+        }
+    }
+
+    /**
+     * 标记支付并返回订单
+     * MySQL不支持 RETURNING 在事务中先锁住订单行 再更新
+     */
+    @Override
+    public Order markPayAndGet(long orderId, @NotNull String info) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                Order order = null;
+                try (PreparedStatement statement = connection.prepareStatement("SELECT " + ORDER_COLUMNS + " FROM `" + TABLE_NAME + "` WHERE `id` = ? FOR UPDATE;")) {
+                    statement.setLong(1, orderId);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (resultSet.next()) {
+                            order = readOrder(resultSet);
+                        }
+                    }
+                }
+                if (order == null || order.getStatus() != 0) {
+                    connection.rollback();
+                    return null;
+                }
+                Timestamp payTime = new Timestamp(System.currentTimeMillis());
+                try (PreparedStatement statement = connection.prepareStatement(MARK_PAY_SQL)) {
+                    setMarkPayParameters(statement, orderId, info, payTime);
+                    statement.executeUpdate();
+                }
+                connection.commit();
+                order.setStatus(1);
+                order.setPayTime(payTime);
+                order.setPayInfo(info);
+                return order;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
         } catch (SQLException e) {
             throw new IllegalStateException("数据库异常", e);
         }
@@ -2,16 +2,48 @@ package com.promc.payapi.storage;
 
 import com.promc.payapi.api.order.Order;
 import com.promc.payapi.api.storage.Storage;
+import com.promc.payapi.util.Sequence;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.sql.DataSource;
 import java.sql.*;
-import java.util.UUID;
+import java.util.*;
 
 public abstract class SQLStorage implements Storage {
 
+    /**
+     * 订单的所有列
+     */
+    protected static final String ORDER_COLUMNS = "`id`,`buyer`,`subject`,`total_fee`,`status`,`create_time`,`pay_time`,`pay_info`";
+
+    /**
+     * 订单表的索引 索引名 - 列
+     */
+    protected static final String[][] ORDER_INDEXES = {
+            {"idx_buyer_create_time", "`buyer`, `create_time`"},
+            {"idx_status_create_time", "`status`, `create_time`"},
+            {"idx_create_time", "`create_time`, `id`"}
+    };
+
+    /**
+     * 插入订单
+     */
+    protected static final String INSERT_ORDER_SQL = "INSERT INTO `" + TABLE_NAME + "` (" + ORDER_COLUMNS + ") VALUES (?,?,?,?,?,?,?,?);";
+
+    /**
+     * 标记支付 只有未支付的订单才会被更新
+     */
+    protected static final String MARK_PAY_SQL = "UPDATE `" + TABLE_NAME + "` SET `status` = 1, `pay_time` = ?, `pay_info` = ? WHERE `id` = ? AND `status` = 0;";
+
     protected final DataSource dataSource;
 
+    /**
+     * 买家是否以16字节二进制存储
+     * 由 {@link #createTable()} 根据实际的表结构确定
+     */
+    protected volatile boolean binaryBuyer;
+
     public SQLStorage(DataSource dataSource) {
         this.dataSource = dataSource;
     }
@@ -20,45 +52,144 @@ public abstract class SQLStorage implements Storage {
         return dataSource;
     }
 
+    /**
+     * 设置买家是否以16字节二进制存储 需要在 {@link #createTable()} 之前调用
+     * 开启后 {@link #createTable()} 会把已有的文本买家列迁移为二进制
+     * 迁移是单向的 迁移后关闭此选项仍然按二进制读写
+     *
+     * @param binaryBuyer 是否以二进制存储
+     */
+    public void setBinaryBuyer(boolean binaryBuyer) {
+        this.binaryBuyer = binaryBuyer;
+    }
+
+    public boolean isBinaryBuyer() {
+        return binaryBuyer;
+    }
+
+    /**
+     * 在 createTable 中建表之后调用
+     * 按需迁移买家列 并根据实际的列类型确定读写方式
+     *
+     * @param connection 连接
+     */
+    protected void setupBuyerColumn(@NotNull Connection connection) throws SQLException {
+        boolean binaryColumn = isBinaryColumn(connection, TABLE_NAME, "buyer");
+        if (binaryBuyer && !binaryColumn) {
+            migrateBuyerToBinary(connection);
+            binaryColumn = true;
+        }
+        binaryBuyer = binaryColumn;
+    }
+
+    /**
+     * 把文本的买家列迁移为16字节二进制
+     *
+     * @param connection 连接
+     */
+    protected abstract void migrateBuyerToBinary(@NotNull Connection connection) throws SQLException;
+
+    /**
+     * 列是否为二进制类型
+     */
+    protected static boolean isBinaryColumn(@NotNull Connection connection, @NotNull String table, @NotNull String column) throws SQLException {
+        try (ResultSet resultSet = connection.getMetaData().getColumns(connection.getCatalog(), null, table, column)) {
+            if (resultSet.next()) {
+                String type = resultSet.getString("TYPE_NAME").toUpperCase(Locale.ROOT);
+                return type.contains("BINARY") || type.contains("BLOB");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 设置买家参数
+     */
+    protected void setBuyer(@NotNull PreparedStatement statement, int index, @NotNull UUID buyer) throws SQLException {
+        if (binaryBuyer) {
+            statement.setBytes(index, toBytes(buyer));
+        } else {
+            statement.setString(index, buyer.toString());
+        }
+    }
+
+    /**
+     * 读取买家
+     */
+    @NotNull
+    protected UUID readBuyer(@NotNull ResultSet resultSet, int index) throws SQLException {
+        if (binaryBuyer) {
+            return fromBytes(resultSet.getBytes(index));
+        }
+        return UUID.fromString(resultSet.getString(index));
+    }
+
+    /**
+     * UUID转为16字节 高位在前 与去掉横线的十六进制字符串顺序一致
+     */
+    @NotNull
+    protected static byte[] toBytes(@NotNull UUID uuid) {
+        byte[] bytes = new byte[16];
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (most >>> (56 - (i << 3)));
+            bytes[i + 8] = (byte) (least >>> (56 - (i << 3)));
+        }
+        return bytes;
+    }
+
+    @NotNull
+    protected static UUID fromBytes(@NotNull byte[] bytes) {
+        long most = 0L;
+        long least = 0L;
+        for (int i = 0; i < 8; i++) {
+            most = (most << 8) | (bytes[i] & 0xFF);
+            least = (least << 8) | (bytes[i + 8] & 0xFF);
+        }
+        return new UUID(most, least);
+    }
+
     @Override
     public void insertOrder(@NotNull Order order) {
         try (
                 Connection connection = dataSource.getConnection();
-                PreparedStatement statement = connection.prepareStatement("INSERT INTO `" + TABLE_NAME + "` (`id`,`buyer`,`subject`,`total_fee`,`status`,`create_time`,`pay_time`,`pay_info`) VALUES (?,?,?,?,?,?,?,?);")
+                PreparedStatement statement = connection.prepareStatement(INSERT_ORDER_SQL)
         ) {
-            statement.setLong(1, order.getId());
-            statement.setString(2, order.getBuyer().toString());
-            statement.setString(3, order.getSubject());
-            statement.setBigDecimal(4, order.getTotalFee());
-            statement.setInt(5, order.getStatus());
-            statement.setTimestamp(6, order.getCreateTime());
-            statement.setTimestamp(7, null);
-            statement.setString(8, null);
+            setInsertOrderParameters(statement, order);
             statement.executeUpdate();
         } catch (SQLException e) {
             throw new IllegalStateException("数据库异常", e);
         }
     }
 
+    /**
+     * 设置插入订单语句的参数
+     *
+     * @param statement {@link #INSERT_ORDER_SQL}
+     * @param order     订单
+     */
+    protected void setInsertOrderParameters(@NotNull PreparedStatement statement, @NotNull Order order) throws SQLException {
+        statement.setLong(1, order.getId());
+        setBuyer(statement, 2, order.getBuyer());
+        statement.setString(3, order.getSubject());
+        statement.setBigDecimal(4, order.getTotalFee());
+        statement.setInt(5, order.getStatus());
+        statement.setTimestamp(6, order.getCreateTime());
+        statement.setTimestamp(7, null);
+        statement.setString(8, null);
+    }
+
     @Override
     public Order selectOrderById(long orderId) {
         try (
                 Connection connection = dataSource.getConnection();
-                PreparedStatement statement = connection.prepareStatement("SELECT `id`,`buyer`,`subject`,`total_fee`,`status`,`create_time`,`pay_time`,`pay_info` FROM " + TABLE_NAME + " WHERE `id` = ?;")
+                PreparedStatement statement = connection.prepareStatement("SELECT " + ORDER_COLUMNS + " FROM " + TABLE_NAME + " WHERE `id` = ?;")
         ) {
             statement.setLong(1, orderId);
             try (ResultSet resultSet = statement.executeQuery()) {
                 if (resultSet.next()) {
-                    Order order = new Order();
-                    order.setId(resultSet.getLong(1));
-                    order.setBuyer(UUID.fromString(resultSet.getString(2)));
-                    order.setSubject(resultSet.getString(3));
-                    order.setTotalFee(resultSet.getBigDecimal(4));
-                    order.setStatus(resultSet.getInt(5));
-                    order.setCreateTime(resultSet.getTimestamp(6));
-                    order.setPayTime(resultSet.getTimestamp(7));
-                    order.setPayInfo(resultSet.getString(8));
-                    return order;
+                    return readOrder(resultSet);
                 }
                 return null;
             }
@@ -67,18 +198,304 @@ public abstract class SQLStorage implements Storage {
         }
     }
 
+    /**
+     * 从结果集的当前行读取订单
+     * 列的顺序与 {@link #ORDER_COLUMNS} 一致
+     *
+     * @param resultSet 结果集
+     * @return 订单
+     */
+    @NotNull
+    protected Order readOrder(@NotNull ResultSet resultSet) throws SQLException {
+        Order order = new Order();
+        order.setId(resultSet.getLong(1));
+        order.setBuyer(readBuyer(resultSet, 2));
+        order.setSubject(resultSet.getString(3));
+        order.setTotalFee(resultSet.getBigDecimal(4));
+        order.setStatus(resultSet.getInt(5));
+        order.setCreateTime(resultSet.getTimestamp(6));
+        order.setPayTime(resultSet.getTimestamp(7));
+        order.setPayInfo(resultSet.getString(8));
+        return order;
+    }
+
+    /**
+     * 创建订单表中不存在的索引
+     * MySQL不支持 CREATE INDEX IF NOT EXISTS 所以先查出已有的索引
+     *
+     * @param connection 连接
+     */
+    protected void createIndexes(@NotNull Connection connection) throws SQLException {
+        Set<String> exists = getIndexes(connection);
+        try (Statement statement = connection.createStatement()) {
+            for (String[] index : ORDER_INDEXES) {
+                if (!exists.contains(index[0])) {
+                    statement.executeUpdate("CREATE INDEX `" + index[0] + "` ON `" + TABLE_NAME + "` (" + index[1] + ");");
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取订单表已有的索引名 小写
+     *
+     * @param connection 连接
+     * @return 索引名
+     */
+    @NotNull
+    protected Set<String> getIndexes(@NotNull Connection connection) throws SQLException {
+        Set<String> indexes = new HashSet<>();
+        try (ResultSet resultSet = connection.getMetaData().getIndexInfo(connection.getCatalog(), null, TABLE_NAME, false, false)) {
+            while (resultSet.next()) {
+                String name = resultSet.getString("INDEX_NAME");
+                if (name != null) {
+                    indexes.add(name.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return indexes;
+    }
+
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByBuyer(@NotNull UUID buyer, int page, int pageSize) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT " + ORDER_COLUMNS + " FROM `" + TABLE_NAME + "` WHERE `buyer` = ? ORDER BY `create_time` DESC, `id` DESC LIMIT ? OFFSET ?;")
+        ) {
+            setBuyer(statement, 1, buyer);
+            statement.setInt(2, pageSize);
+            statement.setInt(3, page * pageSize);
+            return readOrders(statement);
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByStatus(int status, @NotNull Timestamp since, int limit) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT " + ORDER_COLUMNS + " FROM `" + TABLE_NAME + "` WHERE `status` = ? AND `create_time` >= ? ORDER BY `create_time` LIMIT ?;")
+        ) {
+            statement.setInt(1, status);
+            statement.setTimestamp(2, since);
+            statement.setInt(3, limit);
+            return readOrders(statement);
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByTime(@NotNull Timestamp from, @NotNull Timestamp to, @Nullable Order after, int limit) {
+        if (after == null) {
+            try (
+                    Connection connection = dataSource.getConnection();
+                    PreparedStatement statement = connection.prepareStatement("SELECT " + ORDER_COLUMNS + " FROM `" + TABLE_NAME + "` WHERE `create_time` >= ? AND `create_time` < ? ORDER BY `create_time`, `id` LIMIT ?;")
+            ) {
+                statement.setTimestamp(1, from);
+                statement.setTimestamp(2, to);
+                statement.setInt(3, limit);
+                return readOrders(statement);
+            } catch (SQLException e) {
+                throw new IllegalStateException("数据库异常", e);
+            }
+        }
+        // 从上一页最后一个订单之后继续 (create_time, id) 作为游标
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT " + ORDER_COLUMNS + " FROM `" + TABLE_NAME + "` WHERE `create_time` < ? AND (`create_time` > ? OR (`create_time` = ? AND `id` > ?)) ORDER BY `create_time`, `id` LIMIT ?;")
+        ) {
+            statement.setTimestamp(1, to);
+            Timestamp cursor = after.getCreateTime().before(from) ? from : after.getCreateTime();
+            statement.setTimestamp(2, cursor);
+            statement.setTimestamp(3, cursor);
+            statement.setLong(4, after.getId());
+            statement.setInt(5, limit);
+            return readOrders(statement);
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    /**
+     * 执行查询并读取所有订单
+     *
+     * @param statement 查询语句
+     * @return 订单
+     */
+    @NotNull
+    protected List<Order> readOrders(@NotNull PreparedStatement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            List<Order> orders = new ArrayList<>();
+            while (resultSet.next()) {
+                orders.add(readOrder(resultSet));
+            }
+            return orders;
+        }
+    }
+
     @Override
     public boolean markPay(long orderId, @NotNull String info) {
         try (
                 Connection connection = dataSource.getConnection();
-                PreparedStatement statement = connection.prepareStatement("UPDATE `" + TABLE_NAME + "` SET `status` = 1, `pay_time` = ?, `pay_info` = ? WHERE `id` = ? AND `status` = 0;")
+                PreparedStatement statement = connection.prepareStatement(MARK_PAY_SQL)
         ) {
-            statement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
-            statement.setString(2, info);
-            statement.setLong(3, orderId);
+            setMarkPayParameters(statement, orderId, info, new Timestamp(System.currentTimeMillis()));
             return statement.executeUpdate() > 0;
         } catch (SQLException e) {
             throw new IllegalStateException(e);
         }
     }
+
+    /**
+     * 设置标记支付语句的参数
+     *
+     * @param statement {@link #MARK_PAY_SQL}
+     * @param orderId   订单号
+     * @param info      订单信息
+     * @param payTime   支付时间
+     */
+    protected void setMarkPayParameters(@NotNull PreparedStatement statement, long orderId, @NotNull String info, @NotNull Timestamp payTime) throws SQLException {
+        statement.setTimestamp(1, payTime);
+        statement.setString(2, info);
+        statement.setLong(3, orderId);
+    }
+
+    @Override
+    public long leaseWorkerId(long dataCenterId, @NotNull String owner, long expireTime) {
+        // 其它服务器可能同时在租用 抢占失败就重新查一遍
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Map<Long, Long> leases = selectWorkerLeases(dataCenterId);
+            long now = System.currentTimeMillis();
+            for (long workerId = 0; workerId <= Sequence.MAX_WORKER_ID; workerId++) {
+                Long leaseExpireTime = leases.get(workerId);
+                if (leaseExpireTime == null) {
+                    if (insertWorkerLease(dataCenterId, workerId, owner, expireTime)) {
+                        return workerId;
+                    }
+                } else if (leaseExpireTime < now) {
+                    if (takeOverWorkerLease(dataCenterId, workerId, leaseExpireTime, owner, expireTime)) {
+                        return workerId;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 查询数据中心下所有的租约
+     *
+     * @param dataCenterId 数据中心ID
+     * @return 工作ID - 租约过期时间
+     */
+    private Map<Long, Long> selectWorkerLeases(long dataCenterId) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT `worker_id`,`expire_time` FROM `" + WORKER_TABLE_NAME + "` WHERE `data_center_id` = ?;")
+        ) {
+            statement.setLong(1, dataCenterId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                Map<Long, Long> leases = new HashMap<>();
+                while (resultSet.next()) {
+                    leases.put(resultSet.getLong(1), resultSet.getLong(2));
+                }
+                return leases;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    /**
+     * 插入新的租约
+     *
+     * @return 是否插入成功 主键冲突(被其它服务器抢先)时返回false
+     */
+    private boolean insertWorkerLease(long dataCenterId, long workerId, @NotNull String owner, long expireTime) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("INSERT INTO `" + WORKER_TABLE_NAME + "` (`data_center_id`,`worker_id`,`owner`,`expire_time`) VALUES (?,?,?,?);")
+        ) {
+            statement.setLong(1, dataCenterId);
+            statement.setLong(2, workerId);
+            statement.setString(3, owner);
+            statement.setLong(4, expireTime);
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                return false;
+            }
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    /**
+     * 是否是主键/唯一键冲突
+     * 其它错误(连接失败、没有权限等)不能当作冲突处理
+     *
+     * @param e 异常
+     * @return 是否是主键冲突
+     */
+    protected boolean isDuplicateKey(@NotNull SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLIntegrityConstraintViolationException || (state != null && state.startsWith("23"));
+    }
+
+    /**
+     * 接管已过期的租约
+     * 以旧的过期时间作为条件 保证只有一个服务器能接管成功
+     *
+     * @return 是否接管成功
+     */
+    private boolean takeOverWorkerLease(long dataCenterId, long workerId, long oldExpireTime, @NotNull String owner, long expireTime) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("UPDATE `" + WORKER_TABLE_NAME + "` SET `owner` = ?, `expire_time` = ? WHERE `data_center_id` = ? AND `worker_id` = ? AND `expire_time` = ?;")
+        ) {
+            statement.setString(1, owner);
+            statement.setLong(2, expireTime);
+            statement.setLong(3, dataCenterId);
+            statement.setLong(4, workerId);
+            statement.setLong(5, oldExpireTime);
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    @Override
+    public boolean renewWorkerId(long dataCenterId, long workerId, @NotNull String owner, long expireTime) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("UPDATE `" + WORKER_TABLE_NAME + "` SET `expire_time` = ? WHERE `data_center_id` = ? AND `worker_id` = ? AND `owner` = ?;")
+        ) {
+            statement.setLong(1, expireTime);
+            statement.setLong(2, dataCenterId);
+            statement.setLong(3, workerId);
+            statement.setString(4, owner);
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    @Override
+    public void releaseWorkerId(long dataCenterId, long workerId, @NotNull String owner) {
+        try (
+                Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("DELETE FROM `" + WORKER_TABLE_NAME + "` WHERE `data_center_id` = ? AND `worker_id` = ? AND `owner` = ?;")
+        ) {
+            statement.setLong(1, dataCenterId);
+            statement.setLong(2, workerId);
+            statement.setString(3, owner);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
 }
@@ -1,13 +1,25 @@
 package com.promc.payapi.storage;
 
+import com.promc.payapi.api.order.Order;
 import com.promc.payapi.api.storage.Storage;
+import org.jetbrains.annotations.NotNull;
 
 import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.*;
+import java.util.UUID;
 
 public class SQLiteStorage extends SQLStorage {
+
+    /**
+     * 标记支付并返回订单 需要SQLite 3.35+
+     */
+    private static final String MARK_PAY_RETURNING_SQL = "UPDATE `" + TABLE_NAME + "` SET `status` = 1, `pay_time` = ?, `pay_info` = ? WHERE `id` = ? AND `status` = 0 RETURNING " + ORDER_COLUMNS + ";";
+
+    /**
+     * 是否支持 RETURNING 第一次执行失败后就不再尝试
+     */
+    private volatile boolean returningSupported = true;
+
     public SQLiteStorage(DataSource dataSource) {
         super(dataSource);
     }
@@ -18,16 +30,138 @@ public class SQLiteStorage extends SQLStorage {
                 Connection connection = dataSource.getConnection();
                 Statement statement = connection.createStatement();
         ) {
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + Storage.TABLE_NAME + "` (\n" +
-                    "    `id` INTEGER PRIMARY KEY,\n" +
-                    "    `subject` TEXT NOT NULL,\n" +
-                    "    `buyer` TEXT NOT NULL,\n" +
-                    "    `total_fee` NUMERIC NOT NULL,\n" +
-                    "    `status` INTEGER NOT NULL,\n" +
-                    "    `create_time` TIMESTAMP NOT NULL,\n" +
-                    "    `pay_time` TIMESTAMP DEFAULT NULL,\n" +
-                    "    `pay_info` TEXT DEFAULT NULL\n" +
+            statement.executeUpdate(createOrderTableSql(Storage.TABLE_NAME));
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `" + Storage.WORKER_TABLE_NAME + "` (\n" +
+                    "    `data_center_id` INTEGER NOT NULL,\n" +
+                    "    `worker_id` INTEGER NOT NULL,\n" +
+                    "    `owner` TEXT NOT NULL,\n" +
+                    "    `expire_time` INTEGER NOT NULL,\n" +
+                    "    PRIMARY KEY (`data_center_id`, `worker_id`)\n" +
                     ");");
+            setupBuyerColumn(connection);
+            createIndexes(connection);
+        } catch (SQLException e) {
+            throw new IllegalStateException("数据库异常", e);
+        }
+    }
+
+    /**
+     * 订单表的建表语句
+     */
+    private String createOrderTableSql(String table) {
+        return "CREATE TABLE IF NOT EXISTS `" + table + "` (\n" +
+                "    `id` INTEGER PRIMARY KEY,\n" +
+                "    `subject` TEXT NOT NULL,\n" +
+                (binaryBuyer ? "    `buyer` BLOB NOT NULL,\n" : "    `buyer` TEXT NOT NULL,\n") +
+                "    `total_fee` NUMERIC NOT NULL,\n" +
+                "    `status` INTEGER NOT NULL,\n" +
+                "    `create_time` TIMESTAMP NOT NULL,\n" +
+                "    `pay_time` TIMESTAMP DEFAULT NULL,\n" +
+                "    `pay_info` TEXT DEFAULT NULL\n" +
+                ");";
+    }
+
+    /**
+     * SQLite不能修改列的类型 在一个事务中复制到新表 转换买家后替换原来的表
+     * 原来的索引随旧表一起删除 之后由 createIndexes 重建
+     */
+    @Override
+    protected void migrateBuyerToBinary(@NotNull Connection connection) throws SQLException {
+        String migrateTable = Storage.TABLE_NAME + "_migrate";
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS `" + migrateTable + "`;");
+            statement.executeUpdate(createOrderTableSql(migrateTable));
+            statement.executeUpdate("INSERT INTO `" + migrateTable + "` (" + ORDER_COLUMNS + ") SELECT " + ORDER_COLUMNS + " FROM `" + Storage.TABLE_NAME + "`;");
+            try (
+                    PreparedStatement select = connection.prepareStatement("SELECT `id`, `buyer` FROM `" + Storage.TABLE_NAME + "`;");
+                    PreparedStatement update = connection.prepareStatement("UPDATE `" + migrateTable + "` SET `buyer` = ? WHERE `id` = ?;");
+                    ResultSet resultSet = select.executeQuery()
+            ) {
+                int count = 0;
+                while (resultSet.next()) {
+                    update.setBytes(1, toBytes(UUID.fromString(resultSet.getString(2))));
+                    update.setLong(2, resultSet.getLong(1));
+                    update.addBatch();
+                    if (++count % 1000 == 0) {
+                        update.executeBatch();
+                    }
+                }
+                update.executeBatch();
+            }
+            statement.executeUpdate("DROP TABLE `" + Storage.TABLE_NAME + "`;");
+            statement.executeUpdate("ALTER TABLE `" + migrateTable + "` RENAME TO `" + Storage.TABLE_NAME + "`;");
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * SQLite驱动不设置SQLState 约束冲突的错误码为 SQLITE_CONSTRAINT(19) 低8位为基础错误码
+     */
+    @Override
+    protected boolean isDuplicateKey(@NotNull SQLException e) {
+        return super.isDuplicateKey(e) || (e.getErrorCode() & 0xFF) == 19;
+    }
+
+    @Override
+    public Order markPayAndGet(long orderId, @NotNull String info) {
+        Timestamp payTime = new Timestamp(System.currentTimeMillis());
+        if (returningSupported) {
+            try (
+                    Connection connection = dataSource.getConnection();
+                    PreparedStatement statement = connection.prepareStatement(MARK_PAY_RETURNING_SQL)
+            ) {
+                setMarkPayParameters(statement, orderId, info, payTime);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? readOrder(resultSet) : null;
+                }
+            } catch (SQLException e) {
+                String message = e.getMessage();
+                if (message == null || !message.contains("RETURNING")) {
+                    throw new IllegalStateException("数据库异常", e);
+                }
+                // 旧版本的SQLite不支持 RETURNING 语法 改用事务
+                returningSupported = false;
+            }
+        }
+        return markPayAndGetInTransaction(orderId, info, payTime);
+    }
+
+    /**
+     * 在一个事务中标记支付并查询订单
+     */
+    private Order markPayAndGetInTransaction(long orderId, @NotNull String info, @NotNull Timestamp payTime) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                Order order = null;
+                try (PreparedStatement statement = connection.prepareStatement(MARK_PAY_SQL)) {
+                    setMarkPayParameters(statement, orderId, info, payTime);
+                    if (statement.executeUpdate() > 0) {
+                        try (PreparedStatement select = connection.prepareStatement("SELECT " + ORDER_COLUMNS + " FROM `" + TABLE_NAME + "` WHERE `id` = ?;")) {
+                            select.setLong(1, orderId);
+                            try (ResultSet resultSet = select.executeQuery()) {
+                                if (resultSet.next()) {
+                                    order = readOrder(resultSet);
+                                }
+                            }
+                        }
+                    }
+                }
+                connection.commit();
+                return order;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
         } catch (SQLException e) {
             throw new IllegalStateException("数据库异常", e);
         }
@@ -0,0 +1,108 @@
+package com.promc.payapi.storage;
+
+import com.promc.payapi.api.storage.Storage;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * 工作ID租约
+ * 多个服务器共用一个数据库时 每个服务器从数据库中租用不同的工作ID 并定时续租
+ */
+public class WorkerLease {
+
+    /**
+     * 租约有效时长(毫秒)
+     */
+    public static final long LEASE_TIME = 60_000L;
+
+    /**
+     * 续租间隔(毫秒) 需要远小于租约有效时长
+     */
+    public static final long RENEW_INTERVAL = 20_000L;
+
+    /**
+     * 本地判断租约过期时提前的时间(毫秒) 留出服务器之间的时钟误差
+     */
+    public static final long SAFETY_MARGIN = 5_000L;
+
+    private final Storage storage;
+
+    private final long dataCenterId;
+
+    /**
+     * 租用者 每次启动都不相同
+     */
+    private final String owner = UUID.randomUUID().toString();
+
+    private volatile long workerId = -1L;
+
+    /**
+     * 最后一次成功租用/续租时计算的过期时间
+     * 以发出请求前的时间计算 不会晚于数据库中记录的过期时间
+     */
+    private volatile long expireTime;
+
+    public WorkerLease(@NotNull Storage storage, long dataCenterId) {
+        this.storage = storage;
+        this.dataCenterId = dataCenterId;
+    }
+
+    /**
+     * 租用工作ID
+     *
+     * @return 工作ID
+     */
+    public long lease() {
+        long expire = System.currentTimeMillis() + LEASE_TIME;
+        long id = storage.leaseWorkerId(dataCenterId, owner, expire);
+        if (id < 0) {
+            throw new IllegalStateException("数据中心 " + dataCenterId + " 没有空闲的工作ID");
+        }
+        workerId = id;
+        expireTime = expire;
+        return id;
+    }
+
+    /**
+     * 续租
+     *
+     * @return 是否续租成功 失败说明租约已过期并被其它服务器抢占
+     */
+    public boolean renew() {
+        long expire = System.currentTimeMillis() + LEASE_TIME;
+        if (workerId >= 0 && storage.renewWorkerId(dataCenterId, workerId, owner, expire)) {
+            expireTime = expire;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 租约是否仍然有效
+     * 续租一直失败到租约过期后 工作ID可能已经被其它服务器接管 不能再用它生成订单号
+     *
+     * @return 是否有效
+     */
+    public boolean isValid() {
+        return workerId >= 0 && System.currentTimeMillis() < expireTime - SAFETY_MARGIN;
+    }
+
+    /**
+     * 释放租约
+     */
+    public void release() {
+        if (workerId >= 0) {
+            storage.releaseWorkerId(dataCenterId, workerId, owner);
+            workerId = -1L;
+        }
+    }
+
+    public long getDataCenterId() {
+        return dataCenterId;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+}
@@ -0,0 +1,391 @@
+package com.promc.payapi.storage;
+
+import com.promc.payapi.api.order.Order;
+import com.promc.payapi.api.storage.Storage;
+import com.promc.payapi.util.LoggerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * 异步批量写入的存储
+ * 插入订单和标记支付先放入有界队列 由单独的写入线程在一个事务中写入数据库 插入订单使用 addBatch/executeBatch 批量写入
+ * <p>
+ * 只有一个写入线程 且按入队顺序写入 同一个订单的操作不会乱序
+ * 查询订单时会先等待该订单还未写入的操作完成
+ * <p>
+ * 注意 同步的 {@link #insertOrder(Order)} 也只是放入队列 返回时订单可能还没有写入 写入失败也只会记录日志
+ * 需要确认写入成功时使用 {@link #insertOrderAsync(Order)}
+ */
+public class WriteBehindStorage implements AsyncWriteStorage {
+
+    private final SQLStorage delegate;
+
+    /**
+     * 单次批量写入的最大数量
+     */
+    private final int maxBatch;
+
+    /**
+     * 最大写入延迟(毫秒) 第一个操作入队后最多等待这么久就会写入
+     */
+    private final long maxLatency;
+
+    private final BlockingQueue<Write> queue;
+
+    /**
+     * 每个订单最后一个还未写入的操作
+     */
+    private final Map<Long, CompletableFuture<?>> pending = new ConcurrentHashMap<>();
+
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+
+    public WriteBehindStorage(@NotNull SQLStorage delegate, int maxBatch, long maxLatency, int queueSize) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("最大批量写入数量必须大于0");
+        }
+        this.delegate = delegate;
+        this.maxBatch = maxBatch;
+        this.maxLatency = maxLatency;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.writerThread = new Thread(this::runWriter, "PayAPI-Storage-Writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    @Override
+    public void createTable() {
+        delegate.createTable();
+    }
+
+    /**
+     * 插入订单号
+     * 只放入写入队列 不等待写入完成 写入失败时调用者不会知道
+     * 队列已满时直接抛出异常
+     *
+     * @param order 订单号
+     */
+    @Override
+    public void insertOrder(@NotNull Order order) {
+        CompletableFuture<Void> future = insertOrderAsync(order);
+        if (future.isCompletedExceptionally()) {
+            join(future);
+        }
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Void> insertOrderAsync(@NotNull Order order) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        enqueue(new Write(order.getId(), order, null, null, future));
+        return future;
+    }
+
+    @Override
+    @Nullable
+    public Order selectOrderById(long orderId) {
+        awaitPending(orderId);
+        return delegate.selectOrderById(orderId);
+    }
+
+    /**
+     * 标记支付
+     * 会等待写入完成 以获取是否标记成功
+     */
+    @Override
+    public boolean markPay(long orderId, @NotNull String info) {
+        return join(markPayAsync(orderId, info));
+    }
+
+    @Override
+    @NotNull
+    public CompletableFuture<Boolean> markPayAsync(long orderId, @NotNull String info) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        enqueue(new Write(orderId, null, info, new Timestamp(System.currentTimeMillis()), future));
+        return future;
+    }
+
+    /**
+     * 标记支付并返回订单
+     * 需要取回订单 所以不进入写入队列 但会先等待该订单还未写入的操作完成
+     */
+    @Override
+    @Nullable
+    public Order markPayAndGet(long orderId, @NotNull String info) {
+        awaitPending(orderId);
+        return delegate.markPayAndGet(orderId, info);
+    }
+
+    /**
+     * 列表查询不等待写入队列 最多会漏掉最近 max-latency 毫秒内还未写入的操作
+     */
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByBuyer(@NotNull UUID buyer, int page, int pageSize) {
+        return delegate.selectOrdersByBuyer(buyer, page, pageSize);
+    }
+
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByStatus(int status, @NotNull Timestamp since, int limit) {
+        return delegate.selectOrdersByStatus(status, since, limit);
+    }
+
+    @Override
+    @NotNull
+    public List<Order> selectOrdersByTime(@NotNull Timestamp from, @NotNull Timestamp to, @Nullable Order after, int limit) {
+        return delegate.selectOrdersByTime(from, to, after, limit);
+    }
+
+    @Override
+    public long leaseWorkerId(long dataCenterId, @NotNull String owner, long expireTime) {
+        return delegate.leaseWorkerId(dataCenterId, owner, expireTime);
+    }
+
+    @Override
+    public boolean renewWorkerId(long dataCenterId, long workerId, @NotNull String owner, long expireTime) {
+        return delegate.renewWorkerId(dataCenterId, workerId, owner, expireTime);
+    }
+
+    @Override
+    public void releaseWorkerId(long dataCenterId, long workerId, @NotNull String owner) {
+        delegate.releaseWorkerId(dataCenterId, workerId, owner);
+    }
+
+    /**
+     * 获取被包装的存储
+     *
+     * @return 存储
+     */
+    @NotNull
+    public SQLStorage getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * 停止接收新的写入 并等待队列中剩余的操作写入完成
+     */
+    public void close() {
+        // 不打断写入线程 打断可能导致正在进行的数据库连接获取失败
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 放入写入队列
+     * 队列已满时不等待 直接以异常完成 调用者可能在主线程上
+     */
+    private void enqueue(Write write) {
+        if (!running) {
+            throw new IllegalStateException("存储已关闭");
+        }
+        CompletableFuture<?> previous = pending.put(write.orderId, write.future);
+        write.future.whenComplete((r, e) -> pending.remove(write.orderId, write.future));
+        if (!queue.offer(write)) {
+            write.future.completeExceptionally(new IllegalStateException("写入队列已满"));
+            // 没有入队的操作不能挡住同一订单之前的操作
+            if (previous != null && !previous.isDone() && pending.putIfAbsent(write.orderId, previous) == null) {
+                previous.whenComplete((r, e) -> pending.remove(write.orderId, previous));
+            }
+        }
+    }
+
+    /**
+     * 等待订单还未写入的操作完成
+     */
+    private void awaitPending(long orderId) {
+        CompletableFuture<?> future = pending.get(orderId);
+        if (future != null) {
+            try {
+                future.join();
+            } catch (CompletionException | CancellationException ignored) {
+                // 写入失败已经记录过了 直接查询数据库中的结果
+            }
+        }
+    }
+
+    /**
+     * 写入线程
+     */
+    private void runWriter() {
+        List<Write> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // 在最大延迟内继续收集 直到凑满一批
+                long deadline = first.enqueueTime + TimeUnit.MILLISECONDS.toNanos(maxLatency);
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Write next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // 被打断时 把剩下的全部取出来写完
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    flush(batch);
+                } catch (Throwable e) {
+                    // 写入线程不能退出 否则后面的操作永远等不到结果
+                    for (Write write : batch) {
+                        write.future.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 批量写入
+     * 插入先于更新执行 同一订单总是先插入后标记支付 所以不会乱序
+     */
+    private void flush(List<Write> batch) {
+        List<Write> inserts = new ArrayList<>();
+        List<Write> updates = new ArrayList<>();
+        for (Write write : batch) {
+            if (write.order != null) {
+                inserts.add(write);
+            } else {
+                updates.add(write);
+            }
+        }
+
+        int[] updateCounts;
+        try (Connection connection = delegate.getDataSource().getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                if (!inserts.isEmpty()) {
+                    try (PreparedStatement statement = connection.prepareStatement(SQLStorage.INSERT_ORDER_SQL)) {
+                        for (Write write : inserts) {
+                            delegate.setInsertOrderParameters(statement, write.order);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                updateCounts = new int[updates.size()];
+                if (!updates.isEmpty()) {
+                    // 标记支付是带条件的更新 结果决定是否发货 批量执行时驱动可能只返回 SUCCESS_NO_INFO
+                    // 所以逐条执行拿到准确的更新行数 仍然在同一个事务中
+                    try (PreparedStatement statement = connection.prepareStatement(SQLStorage.MARK_PAY_SQL)) {
+                        for (int i = 0; i < updates.size(); i++) {
+                            Write write = updates.get(i);
+                            delegate.setMarkPayParameters(statement, write.orderId, write.info, write.payTime);
+                            updateCounts[i] = statement.executeUpdate();
+                        }
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            // 批量写入失败 逐条重试 避免一条错误的数据影响整批
+            LoggerUtil.warn("批量写入失败, 逐条重试: " + e.getMessage());
+            flushOneByOne(batch);
+            return;
+        }
+
+        for (Write write : inserts) {
+            write.complete(null);
+        }
+        for (int i = 0; i < updates.size(); i++) {
+            updates.get(i).complete(updateCounts[i] > 0);
+        }
+    }
+
+    /**
+     * 逐条写入
+     */
+    private void flushOneByOne(List<Write> batch) {
+        for (Write write : batch) {
+            try {
+                if (write.order != null) {
+                    delegate.insertOrder(write.order);
+                    write.complete(null);
+                } else {
+                    write.complete(delegate.markPay(write.orderId, write.info));
+                }
+            } catch (RuntimeException e) {
+                LoggerUtil.error("订单 " + write.orderId + " 写入失败: " + e.getMessage());
+                write.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 同步等待结果
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("数据库异常", cause);
+        }
+    }
+
+    /**
+     * 一次写入操作
+     * order不为空时为插入订单 否则为标记支付
+     */
+    private static final class Write {
+
+        private final long orderId;
+        private final Order order;
+        private final String info;
+        private final Timestamp payTime;
+        private final CompletableFuture<?> future;
+        private final long enqueueTime = System.nanoTime();
+
+        private Write(long orderId, Order order, String info, Timestamp payTime, CompletableFuture<?> future) {
+            this.orderId = orderId;
+            this.order = order;
+            this.info = info;
+            this.payTime = payTime;
+            this.future = future;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(Object result) {
+            ((CompletableFuture<Object>) future).complete(result);
+        }
+    }
+}
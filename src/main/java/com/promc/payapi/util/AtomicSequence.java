@@ -0,0 +1,194 @@
+package com.promc.payapi.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.promc.payapi.util.Sequence.*;
+
+/**
+ * 无锁雪花算法
+ * 与 {@link Sequence} 的位布局和起始时间完全一致 生成的ID可以互相比较
+ * <p>
+ * 时间戳和序列号打包在一个long里 通过CAS更新 不需要加锁
+ * 可以把12位序列号拆成多条通道(lane) 不同线程使用不同通道 减少CAS竞争
+ */
+public final class AtomicSequence {
+
+    /**
+     * 通道最多占用的位数：6(64条通道 每条通道每毫秒64个序列号)
+     */
+    private static final int MAX_LANE_BITS = 6;
+
+    /**
+     * 每条通道在数组中的间隔 避免伪共享(8个long = 64字节)
+     */
+    private static final int LANE_STRIDE = 8;
+
+    /**
+     * 数据中心位和工作ID位 构造时就拼好
+     */
+    private final long nodeBits;
+
+    /**
+     * 允许时间回拨的毫秒量
+     */
+    private final long timeOffset;
+
+    /**
+     * 通道占用的位数
+     */
+    private final int laneBits;
+
+    /**
+     * 每条通道的序列号位数
+     */
+    private final long laneSequenceBits;
+
+    /**
+     * 每条通道的序列号掩码
+     */
+    private final long laneSequenceMask;
+
+    /**
+     * 每条通道的状态: 高位为上一次使用的时间戳偏移量 低位为上一次使用的序列号
+     */
+    private final AtomicLongArray lanes;
+
+    public AtomicSequence(long dataCenterId, long workerId) {
+        this(dataCenterId, workerId, 5L, 0);
+    }
+
+    /**
+     * 基于Snowflake创建无锁的分布式ID生成器
+     *
+     * @param dataCenterId 数据中心ID,数据范围为0~3
+     * @param workerId     工作机器ID,数据范围为0~255
+     * @param timeOffset   允许时间回拨的毫秒量,建议5ms
+     * @param laneBits     通道占用的位数,数据范围为0~6,0表示所有线程共用一条通道
+     */
+    public AtomicSequence(long dataCenterId, long workerId, long timeOffset, int laneBits) {
+        if (dataCenterId > MAX_DATA_CENTER_ID || dataCenterId < 0) {
+            throw new IllegalArgumentException("Data Center Id can't be greater than " + MAX_DATA_CENTER_ID + " or less than 0");
+        }
+        if (workerId > MAX_WORKER_ID || workerId < 0) {
+            throw new IllegalArgumentException("Worker Id can't be greater than " + MAX_WORKER_ID + " or less than 0");
+        }
+        if (laneBits > MAX_LANE_BITS || laneBits < 0) {
+            throw new IllegalArgumentException("Lane bits can't be greater than " + MAX_LANE_BITS + " or less than 0");
+        }
+
+        this.nodeBits = (dataCenterId << DATA_CENTER_ID_SHIFT) | (workerId << WORKER_ID_SHIFT);
+        this.timeOffset = timeOffset;
+        this.laneBits = laneBits;
+        this.laneSequenceBits = SEQUENCE_BITS - laneBits;
+        this.laneSequenceMask = ~(-1L << laneSequenceBits);
+        this.lanes = new AtomicLongArray((1 << laneBits) * LANE_STRIDE);
+    }
+
+    /**
+     * 获取ID
+     *
+     * @return ID
+     */
+    public long nextId() {
+        int lane = currentLane();
+        return toId(reserve(lane, 1), lane);
+    }
+
+    /**
+     * 批量获取ID
+     * 尽量在一次CAS中预留多个序列号
+     *
+     * @param n 数量
+     * @return ID数组(同一通道内递增)
+     */
+    public long[] nextIds(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Count can't be less than 0");
+        }
+        long[] ids = new long[n];
+        int lane = currentLane();
+        int filled = 0;
+        while (filled < n) {
+            long first = reserve(lane, n - filled);
+            long granted = Math.min(n - filled, laneSequenceMask + 1 - (first & laneSequenceMask));
+            for (long i = 0; i < granted; i++) {
+                ids[filled++] = toId(first + i, lane);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 在通道中预留序列号
+     * 同一毫秒内最多预留到该毫秒的最后一个序列号
+     *
+     * @param lane  通道
+     * @param count 需要的数量
+     * @return 第一个序列号的状态(时间戳偏移量+序列号)
+     */
+    private long reserve(int lane, long count) {
+        int index = lane * LANE_STRIDE;
+        while (true) {
+            long current = lanes.get(index);
+            long lastTimestamp = current >>> laneSequenceBits;
+            long currentTimestamp = timeGen() - START_TIME;
+
+            long first;
+            if (currentTimestamp > lastTimestamp) {
+                // 新的毫秒 序列号从0开始
+                first = currentTimestamp << laneSequenceBits;
+            } else {
+                // 同一毫秒 或 时钟小幅回拨 继续沿用上一次的时间戳
+                long offset = lastTimestamp - currentTimestamp;
+                if (offset > timeOffset) {
+                    throw new IllegalStateException("Clock moved backwards, refusing to generate id for [" + offset + "ms]");
+                }
+                if ((current & laneSequenceMask) == laneSequenceMask) {
+                    // 这一毫秒的序列号已经用完 让出CPU等待下一毫秒
+                    Thread.yield();
+                    continue;
+                }
+                first = current + 1;
+            }
+
+            long granted = Math.min(count, laneSequenceMask + 1 - (first & laneSequenceMask));
+            if (lanes.compareAndSet(index, current, first + granted - 1)) {
+                return first;
+            }
+        }
+    }
+
+    /**
+     * 将通道状态转为ID
+     *
+     * @param state 通道状态
+     * @param lane  通道
+     * @return ID
+     */
+    private long toId(long state, int lane) {
+        long timestamp = state >>> laneSequenceBits;
+        long sequence = ((long) lane << laneSequenceBits) | (state & laneSequenceMask);
+        return (timestamp << TIMESTAMP_LEFT_SHIFT) | nodeBits | sequence;
+    }
+
+    /**
+     * 当前线程使用的通道
+     *
+     * @return 通道
+     */
+    private int currentLane() {
+        if (laneBits == 0) {
+            return 0;
+        }
+        return (int) Thread.currentThread().getId() & ((1 << laneBits) - 1);
+    }
+
+    /**
+     * 获得系统当前毫秒时间戳
+     *
+     * @return timestamp 毫秒时间戳
+     */
+    private long timeGen() {
+        return System.currentTimeMillis();
+    }
+}
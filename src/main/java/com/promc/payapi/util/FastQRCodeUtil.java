@@ -54,6 +54,21 @@ public class FastQRCodeUtil {
      */
     private static final ReedSolomonEncoder REED_SOLOMON_ENCODER = new ReedSolomonEncoder(28);
 
+    /**
+     * 地图尺寸
+     */
+    private static final int MAP_SIZE = 128;
+
+    /**
+     * 黑块对应的地图色
+     */
+    private static final byte MAP_BLACK = MapColor.colorPicker(0x000000);
+
+    /**
+     * 白底对应的地图色
+     */
+    private static final byte MAP_WHITE = MapColor.colorPicker(0xFFFFFF);
+
     static {
         // 初始化基板 全部填充-1
         for (byte[] rows : TEMPLATE) {
@@ -120,7 +135,17 @@ public class FastQRCodeUtil {
      * @return 二维码图像
      */
     public static BufferedImage createQrCode(@NotNull String content) {
-        return toBufferedImage(generateQrCode(content), 128);
+        return toBufferedImage(generateQrCode(content), MAP_SIZE);
+    }
+
+    /**
+     * 创建二维码地图色
+     *
+     * @param content 内容
+     * @return 地图色(128*128)
+     */
+    public static byte[] createQrCodeMapColors(@NotNull String content) {
+        return toMapColors(generateQrCode(content));
     }
 
     /**
@@ -183,6 +208,41 @@ public class FastQRCodeUtil {
         return image;
     }
 
+    /**
+     * 将二维数组直接转为地图色(128*128)
+     * 与 {@link #toBufferedImage(byte[][], int)} 排版一致 但不经过AWT
+     *
+     * @param bytes 二维数组(二维码)
+     * @return 地图色
+     */
+    public static byte[] toMapColors(byte[][] bytes) {
+        int byteArraySize = bytes.length;
+
+        // 放大倍数和边界 与生成图像时相同
+        int multiple = MAP_SIZE / byteArraySize;
+        int margin = (MAP_SIZE - multiple * byteArraySize) / 2;
+
+        // 先全部填充白底
+        byte[] colors = new byte[MAP_SIZE * MAP_SIZE];
+        Arrays.fill(colors, MAP_WHITE);
+
+        // 逐行写入 同一模块的每一行像素都相同
+        for (int i = 0; i < byteArraySize; i++) {
+            int rowStart = (i * multiple + margin) * MAP_SIZE + margin;
+            for (int j = 0; j < bytes[i].length; j++) {
+                if (bytes[i][j] == 1) {
+                    int from = rowStart + j * multiple;
+                    Arrays.fill(colors, from, from + multiple, MAP_BLACK);
+                }
+            }
+            // 复制出这个模块剩下的几行像素
+            for (int k = 1; k < multiple; k++) {
+                System.arraycopy(colors, rowStart, colors, rowStart + k * MAP_SIZE, byteArraySize * multiple);
+            }
+        }
+        return colors;
+    }
+
     /**
      * 生成数据码
      * 使用ECI模式下的UTF-8编码,支持中文
@@ -1,24 +1,49 @@
 package com.promc.payapi.util;
 
+import com.promc.payapi.http.HttpClient;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * HTTP工具
+ * 所有请求共用一个带连接池的 {@link HttpClient} 同步方法只是等待异步请求完成
  */
 public final class HttpUtil {
 
     public static final String GET_METHOD = "GET";
     public static final String POST_METHOD = "POST";
 
+    private static final String FORM_CONTENT_TYPE = HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED + "; charset=UTF-8";
+
+    /**
+     * 默认连接超时(毫秒)
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /**
+     * 默认读取超时(毫秒)
+     */
+    public static final long DEFAULT_READ_TIMEOUT = 10000L;
+
+    /**
+     * 默认每个主机的最大连接数
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    private static volatile HttpClient client;
+
+    /**
+     * 是否已经关闭 关闭后不再自动创建客户端
+     */
+    private static volatile boolean closed;
+
     /**
      * 工具类隐藏构造方法
      */
@@ -26,6 +51,73 @@ public final class HttpUtil {
         throw new UnsupportedOperationException("此类不允许实例化!");
     }
 
+    /**
+     * 配置HTTP客户端 会关闭之前的客户端
+     *
+     * @param connectTimeout 连接超时(毫秒)
+     * @param readTimeout    读取超时(毫秒)
+     * @param maxConnections 每个主机的最大连接数
+     */
+    public static synchronized void setup(int connectTimeout, long readTimeout, int maxConnections) {
+        HttpClient old = client;
+        client = new HttpClient(connectTimeout, readTimeout, maxConnections);
+        closed = false;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * 关闭HTTP客户端
+     * 之后的请求直接失败 直到重新调用 {@link #setup(int, long, int)}
+     */
+    public static synchronized void shutdown() {
+        closed = true;
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    /**
+     * 获取HTTP客户端 没有配置时使用默认配置
+     *
+     * @return HTTP客户端
+     * @throws IllegalStateException 已经关闭
+     */
+    @NotNull
+    public static HttpClient getClient() {
+        HttpClient current = client;
+        if (current == null) {
+            synchronized (HttpUtil.class) {
+                if (closed) {
+                    // 插件关闭后还在运行的任务不能再创建新的客户端 否则它的线程不会再被关闭
+                    throw new IllegalStateException("HTTP客户端已关闭");
+                }
+                if (client == null) {
+                    client = new HttpClient(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+                }
+                current = client;
+            }
+        }
+        return current;
+    }
+
+    @NotNull
+    public static CompletableFuture<String> getAsync(@NotNull String urlString) {
+        return getClient().get(urlString);
+    }
+
+    @NotNull
+    public static CompletableFuture<String> postAsync(@NotNull String urlString) {
+        return getClient().post(urlString, null, null);
+    }
+
+    @NotNull
+    public static CompletableFuture<String> postAsync(@NotNull String urlString, @NotNull String body) {
+        return getClient().post(urlString, body, FORM_CONTENT_TYPE);
+    }
+
     public static String get(@NotNull String urlString) {
         return get(urlString, StandardCharsets.UTF_8);
     }
@@ -34,6 +126,7 @@ public final class HttpUtil {
         try {
             return sendRequest(urlString, GET_METHOD, charset);
         } catch (IOException e) {
+            LoggerUtil.warn("请求失败 " + urlString + ": " + e.getMessage());
             return "";
         }
     }
@@ -46,6 +139,7 @@ public final class HttpUtil {
         try {
             return sendRequest(urlString, POST_METHOD, charset);
         } catch (IOException e) {
+            LoggerUtil.warn("请求失败 " + urlString + ": " + e.getMessage());
             return "";
         }
     }
@@ -54,43 +148,33 @@ public final class HttpUtil {
         try {
             return sendPostRequest(urlString, body);
         } catch (IOException e) {
+            LoggerUtil.warn("请求失败 " + urlString + ": " + e.getMessage());
             return "";
         }
     }
 
     @NotNull
     public static String sendRequest(@NotNull String urlString, @NotNull String requestMethod, Charset charset) throws IOException {
-        URL url = new URL(urlString);
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        urlConnection.setRequestMethod(requestMethod);
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), charset))) {
-            StringBuilder builder = new StringBuilder();
-            String str;
-            while ((str = reader.readLine()) != null) {
-                builder.append(str);
-            }
-            return builder.toString();
-        }
+        return join(getClient().execute(HttpMethod.valueOf(requestMethod), urlString, null, null, charset));
     }
 
     @NotNull
     public static String sendPostRequest(@NotNull String urlString, @NotNull String body) throws IOException {
-        URL url = new URL(urlString);
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        urlConnection.setRequestMethod(POST_METHOD);
-        urlConnection.setDoInput(true);
-        urlConnection.setDoOutput(true);
-        try (OutputStreamWriter writer = new OutputStreamWriter(urlConnection.getOutputStream(), StandardCharsets.UTF_8)) {
-            writer.write(body);
-            writer.flush();
-        }
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()))) {
-            StringBuilder builder = new StringBuilder();
-            String str;
-            while ((str = reader.readLine()) != null) {
-                builder.append(str);
+        return join(postAsync(urlString, body));
+    }
+
+    /**
+     * 同步等待结果
+     */
+    private static String join(CompletableFuture<String> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
-            return builder.toString();
+            throw new IOException(cause);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,18 +1,46 @@
 package com.promc.payapi.util;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.Map.Entry;
 
 /**
  * Mc的地图中只有一点点的颜色
  * 这个工具类将地图的rpg色转换到mc中最相似的地图色
+ * <p>
+ * 类加载时会预先计算一张 RGB(每通道5bit) -> 地图色 的查找表
+ * 转换图像时每个像素只需要查一次表
  */
 public class MapColor {
 
-    public static Map<Integer, int[]> colorMap = new HashMap<>();
+    private static final Map<Integer, int[]> COLORS = new HashMap<>();
+
+    /**
+     * 地图色 - RGB
+     * 通过它添加或删除地图色时会同时重建查找表 遍历得到的是快照
+     * 直接修改其中的RGB数组不会重建查找表
+     */
+    public static final Map<Integer, int[]> colorMap = new ColorMapView();
+
+    /**
+     * 每个通道量化后保留的位数
+     */
+    private static final int QUANTIZE_BITS = 5;
+
+    /**
+     * 量化后丢弃的位数
+     */
+    private static final int QUANTIZE_SHIFT = 8 - QUANTIZE_BITS;
+
+    /**
+     * 查找表的大小 量化后的RGB共32768个
+     */
+    private static final int TABLE_SIZE = 1 << QUANTIZE_BITS * 3;
+
+    /**
+     * 当前的查找表 添加地图色后整体替换 不会读到构建了一半的表
+     */
+    private static volatile Tables tables;
 
     //参考 https://wiki.biligame.com/mc/地图物品格式
     static {
@@ -68,13 +96,35 @@ public class MapColor {
         putMapColor(49, 76, 82, 42);
         putMapColor(50, 142, 60, 46);
         putMapColor(51, 37, 22, 16);
+
+        // 地图色表构建完成后 生成查找表
+        tables = buildTables();
+    }
+
+    /**
+     * 添加地图色
+     * 类加载完成后再添加会重建整个查找表(几十毫秒) 不要频繁调用
+     *
+     * @param id 地图色基础ID
+     * @param r  红色
+     * @param g  绿色
+     * @param b  蓝色
+     */
+    public static synchronized void putMapColor(int id, int r, int g, int b) {
+        COLORS.put(id * 4, color(0.71, r, g, b));
+        COLORS.put(id * 4 + 1, color(0.86, r, g, b));
+        COLORS.put(id * 4 + 2, color(1, r, g, b));
+        COLORS.put(id * 4 + 3, color(0.53, r, g, b));
+        rebuildTables();
     }
 
-    public static void putMapColor(int id, int r, int g, int b) {
-        colorMap.put(id * 4, color(0.71, r, g, b));
-        colorMap.put(id * 4 + 1, color(0.86, r, g, b));
-        colorMap.put(id * 4 + 2, color(1, r, g, b));
-        colorMap.put(id * 4 + 3, color(0.53, r, g, b));
+    /**
+     * 地图色变化后重建查找表 类加载时只在最后构建一次
+     */
+    private static void rebuildTables() {
+        if (tables != null) {
+            tables = buildTables();
+        }
     }
 
     public static int[] color(double a, int red, int green, int blue) {
@@ -85,6 +135,80 @@ public class MapColor {
         };
     }
 
+    /**
+     * 根据 colorMap 构建查找表
+     * 每个量化格子取中心点计算最相似的地图色
+     */
+    private static Tables buildTables() {
+        // 转成数组 避免遍历HashMap和拆箱
+        int size = COLORS.size();
+        int[] ids = new int[size];
+        int[][] rgbs = new int[size][];
+        int n = 0;
+        for (Entry<Integer, int[]> en : new TreeMap<>(COLORS).entrySet()) {
+            ids[n] = en.getKey();
+            rgbs[n] = en.getValue();
+            n++;
+        }
+
+        byte[] lookup = new byte[TABLE_SIZE];
+        long[] exactBuckets = new long[TABLE_SIZE >> 6];
+        int half = 1 << QUANTIZE_SHIFT >> 1;
+        for (int i = 0; i < lookup.length; i++) {
+            int r = (i >> QUANTIZE_BITS * 2 << QUANTIZE_SHIFT) + half;
+            int g = ((i >> QUANTIZE_BITS & 0x1F) << QUANTIZE_SHIFT) + half;
+            int b = ((i & 0x1F) << QUANTIZE_SHIFT) + half;
+            lookup[i] = nearestColor(ids, rgbs, r, g, b);
+        }
+
+        // 精确匹配表 地图色本身必须映射回自己 不能被量化误差影响
+        long[] packed = new long[size];
+        for (int i = 0; i < size; i++) {
+            int rgb = rgbs[i][0] << 16 | rgbs[i][1] << 8 | rgbs[i][2];
+            // 高位放RGB 低位放下标 排序后相同RGB取id最小的
+            packed[i] = (long) rgb << 32 | i;
+        }
+        Arrays.sort(packed);
+        int[] colors = new int[size];
+        byte[] colorIds = new byte[size];
+        int count = 0;
+        for (long p : packed) {
+            int rgb = (int) (p >>> 32);
+            if (count > 0 && colors[count - 1] == rgb) {
+                continue;
+            }
+            colors[count] = rgb;
+            int key = quantize(rgb);
+            exactBuckets[key >> 6] |= 1L << key;
+            colorIds[count] = (byte) ids[(int) p];
+            count++;
+        }
+        return new Tables(lookup, exactBuckets, Arrays.copyOf(colors, count), Arrays.copyOf(colorIds, count));
+    }
+
+    /**
+     * 遍历所有地图色 找到最相似的值
+     *
+     * @return 最相似的地图色
+     */
+    private static byte nearestColor(int[] ids, int[][] rgbs, int r, int g, int b) {
+        byte id = 0;
+        int similarity = Integer.MAX_VALUE;
+        for (int i = 0; i < ids.length; i++) {
+            int R = r - rgbs[i][0];
+            int G = g - rgbs[i][1];
+            int B = b - rgbs[i][2];
+
+            // R² + G² + B²
+            int s = R * R + G * G + B * B;
+            if (s < similarity) {
+                id = (byte) ids[i];
+                similarity = s;
+            }
+        }
+        return id;
+    }
+
     /**
      * 拾色器
      *
@@ -94,35 +218,165 @@ public class MapColor {
      * @return 与mc中地图色彩最相似的值
      */
     public static byte colorPicker(int r, int g, int b) {
-        byte id = 0;
-        double similarity = 196608;
-        for (Entry<Integer, int[]> en : colorMap.entrySet()) {
-            int R = r - en.getValue()[0];
-            int G = g - en.getValue()[1];
-            int B = b - en.getValue()[2];
+        return colorPicker(r << 16 | g << 8 | b);
+    }
 
-            // R² + G² + B²
-            double s = R * R + G * G + B * B;
-            if (s < similarity) {
-                id = en.getKey().byteValue();
-                similarity = s;
+    /**
+     * 拾色器
+     *
+     * @param rgb RGB值(忽略透明度)
+     * @return 与mc中地图色彩最相似的值
+     */
+    public static byte colorPicker(int rgb) {
+        return colorPicker(tables, rgb);
+    }
+
+    private static byte colorPicker(Tables tables, int rgb) {
+        rgb &= 0xFFFFFF;
+        int key = quantize(rgb);
+        if ((tables.exactBuckets[key >> 6] & 1L << key) != 0) {
+            int index = Arrays.binarySearch(tables.exactColors, rgb);
+            if (index >= 0) {
+                return tables.exactIds[index];
             }
         }
-        return id;
+        return tables.lookup[key];
+    }
+
+    /**
+     * 将RGB量化为查找表的下标
+     *
+     * @param rgb RGB值
+     * @return 查找表下标
+     */
+    private static int quantize(int rgb) {
+        return (rgb >> 16 + QUANTIZE_SHIFT & 0x1F) << QUANTIZE_BITS * 2
+                | (rgb >> 8 + QUANTIZE_SHIFT & 0x1F) << QUANTIZE_BITS
+                | (rgb >> QUANTIZE_SHIFT & 0x1F);
     }
 
     //这里是吧 128*128的像素的转为byte数组
     public static byte[] getByte(BufferedImage bufferedImage) {
+        // 一次性取出所有像素 避免逐个getRGB
+        int[] pixels = bufferedImage.getRGB(0, 0, 128, 128, null, 0, 128);
         byte[] bys = new byte[16384];
-        int n = 0;
-        for (int i = 0; i < 128; i++) {
-            for (int j = 0; j < 128; j++) {
-                Color color = new Color(bufferedImage.getRGB(j, i));
-                int e = MapColor.colorPicker(color.getRed(), color.getGreen(), color.getBlue());
-                bys[n] = (byte) e;
-                n++;
-            }
+        Tables current = tables;
+        for (int i = 0; i < bys.length; i++) {
+            bys[i] = colorPicker(current, pixels[i]);
         }
         return bys;
     }
+
+    /**
+     * colorMap 的实现
+     * 修改都在类锁内进行 与 putMapColor 一样会重建查找表
+     */
+    private static final class ColorMapView extends AbstractMap<Integer, int[]> {
+
+        @Override
+        public int size() {
+            synchronized (MapColor.class) {
+                return COLORS.size();
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            synchronized (MapColor.class) {
+                return COLORS.containsKey(key);
+            }
+        }
+
+        @Override
+        public int[] get(Object key) {
+            synchronized (MapColor.class) {
+                return COLORS.get(key);
+            }
+        }
+
+        @Override
+        public int[] put(Integer key, int[] value) {
+            checkEntry(key, value);
+            synchronized (MapColor.class) {
+                int[] old = COLORS.put(key, value);
+                rebuildTables();
+                return old;
+            }
+        }
+
+        @Override
+        public void putAll(Map<? extends Integer, ? extends int[]> map) {
+            map.forEach(ColorMapView::checkEntry);
+            synchronized (MapColor.class) {
+                // 只重建一次
+                COLORS.putAll(map);
+                rebuildTables();
+            }
+        }
+
+        @Override
+        public int[] remove(Object key) {
+            synchronized (MapColor.class) {
+                int[] old = COLORS.remove(key);
+                if (old != null) {
+                    rebuildTables();
+                }
+                return old;
+            }
+        }
+
+        @Override
+        public void clear() {
+            synchronized (MapColor.class) {
+                COLORS.clear();
+                rebuildTables();
+            }
+        }
+
+        @Override
+        public Set<Entry<Integer, int[]>> entrySet() {
+            synchronized (MapColor.class) {
+                return Collections.unmodifiableMap(new HashMap<>(COLORS)).entrySet();
+            }
+        }
+
+        private static void checkEntry(Integer key, int[] value) {
+            if (key == null || value == null || value.length != 3) {
+                throw new IllegalArgumentException("地图色和RGB不能为空 RGB必须是3个值");
+            }
+        }
+    }
+
+    /**
+     * 一组查找表 构建完成后不再修改
+     */
+    private static final class Tables {
+
+        /**
+         * 查找表 下标为量化后的RGB 值为最相似的地图色
+         */
+        private final byte[] lookup;
+
+        /**
+         * 标记哪些量化格子内含有地图色 只有这些格子才需要精确匹配
+         */
+        private final long[] exactBuckets;
+
+        /**
+         * 地图色的RGB值(已排序) 用于精确匹配
+         */
+        private final int[] exactColors;
+
+        /**
+         * 与 exactColors 一一对应的地图色
+         */
+        private final byte[] exactIds;
+
+        private Tables(byte[] lookup, long[] exactBuckets, int[] exactColors, byte[] exactIds) {
+            this.lookup = lookup;
+            this.exactBuckets = exactBuckets;
+            this.exactColors = exactColors;
+            this.exactIds = exactIds;
+        }
+    }
 }
@@ -2,20 +2,30 @@ package com.promc.payapi.util;
 
 import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolLibrary;
-import com.comphenix.protocol.ProtocolManager;
 import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.reflect.FieldAccessException;
+import com.comphenix.protocol.reflect.StructureModifier;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.MapMeta;
 
 import java.awt.image.BufferedImage;
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MapUtil {
 
+    /**
+     * 地图ID - 地图物品 地图ID会被回收复用 数量不会超过同时支付的人数
+     */
+    private static final Map<Integer, ItemStack> MAP_ITEMS = new ConcurrentHashMap<>();
+
     /**
      * 发送地图数据包
      *
@@ -23,82 +33,200 @@ public class MapUtil {
      * @param bufferedImage 图像
      */
     public static void sendMapViewPacket(Player player, BufferedImage bufferedImage) {
+        sendMapViewPacket(player, MapColor.getByte(bufferedImage));
+    }
+
+    /**
+     * 发送地图数据包
+     *
+     * @param player 玩家
+     * @param bytes  地图色(128*128)
+     */
+    public static void sendMapViewPacket(Player player, byte[] bytes) {
+        sendMapViewPacket(player, 0, bytes);
+    }
+
+    /**
+     * 发送地图数据包
+     *
+     * @param player 玩家
+     * @param mapId  地图ID
+     * @param bytes  地图色(128*128)
+     */
+    public static void sendMapViewPacket(Player player, int mapId, byte[] bytes) {
+        sendPacket(player, MapPacketHolder.FACTORY.create(mapId, bytes));
+    }
+
+    public static void sendMapViewPacket17(Player player, BufferedImage bufferedImage, Class<?> worldMapClass) {
+        sendMapViewPacket17(player, MapColor.getByte(bufferedImage), worldMapClass);
+    }
+
+    public static void sendMapViewPacket17(Player player, byte[] bytes, Class<?> worldMapClass) {
+        sendPacket(player, createMapPacket17(0, bytes, WORLD_MAP_CONSTRUCTOR.get(worldMapClass)));
+    }
+
+    private static void sendPacket(Player player, PacketContainer packet) {
         try {
-            Class<?> worldMapClass = Class.forName("net.minecraft.world.level.saveddata.maps.WorldMap$b");
-            sendMapViewPacket17(player, bufferedImage, worldMapClass);
-        } catch (ClassNotFoundException e) {
-            ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
-            PacketContainer packet = protocolManager.createPacket(PacketType.Play.Server.MAP);
-            byte[] bytes = MapColor.getByte(bufferedImage);
-            packet.getIntegers().write(0, 0);
-            packet.getIntegers().write(1, 0);
-            packet.getIntegers().write(2, 0);
-            packet.getIntegers().write(3, 128);
-            packet.getIntegers().write(4, 128);
-            packet.getBytes().write(0, (byte) 0);
-            packet.getByteArrays().write(0, bytes);
-            packet.getBooleans().write(0, true);
-            // packet.getBooleans().write(1, true);
+            ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 地图数据包的创建方式
+     * 服务端版本不会在运行时改变 第一次使用时确定
+     */
+    @FunctionalInterface
+    private interface MapPacketFactory {
+
+        PacketContainer create(int mapId, byte[] bytes);
+    }
+
+    private static final class MapPacketHolder {
+
+        private static final MapPacketFactory FACTORY = resolveFactory();
+
+        private static MapPacketFactory resolveFactory() {
+            Class<?> worldMapClass;
             try {
-                protocolManager.sendServerPacket(player, packet);
-            } catch (InvocationTargetException e1) {
-                e1.printStackTrace();
+                // 1.17 起地图像素数据放在 WorldMap$b 中
+                worldMapClass = Class.forName("net.minecraft.world.level.saveddata.maps.WorldMap$b");
+            } catch (ClassNotFoundException e) {
+                return MapUtil::createLegacyMapPacket;
             }
+            MethodHandle constructor = WORLD_MAP_CONSTRUCTOR.get(worldMapClass);
+            return (mapId, bytes) -> createMapPacket17(mapId, bytes, constructor);
         }
     }
 
-    public static void sendMapViewPacket17(Player player, BufferedImage bufferedImage, Class<?> worldMapClass) {
-        try {
-            ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
-            PacketContainer packet = protocolManager.createPacket(PacketType.Play.Server.MAP);
-            Constructor<?> constructor = worldMapClass.getConstructor(int.class, int.class, int.class, int.class, byte[].class);
-            Object o = constructor.newInstance(0, 0, 128, 128, MapColor.getByte(bufferedImage));
-            packet.getModifier().write(4, o);
+    /**
+     * WorldMap$b(int, int, int, int, byte[]) 的构造方法
+     */
+    private static final ClassValue<MethodHandle> WORLD_MAP_CONSTRUCTOR = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
             try {
-                protocolManager.sendServerPacket(player, packet);
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
+                return MethodHandles.publicLookup()
+                        .findConstructor(type, MethodType.methodType(void.class, int.class, int.class, int.class, int.class, byte[].class))
+                        .asType(MethodType.methodType(Object.class, int.class, int.class, int.class, int.class, byte[].class));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("不支持的服务端版本", e);
             }
-        } catch (ReflectiveOperationException e) {
-            e.printStackTrace();
         }
+    };
+
+    private static PacketContainer createMapPacket17(int mapId, byte[] bytes, MethodHandle constructor) {
+        PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.MAP);
+        packet.getIntegers().write(0, mapId);
+        Object patch;
+        try {
+            patch = (Object) constructor.invokeExact(0, 0, 128, 128, bytes);
+        } catch (Throwable e) {
+            throw new IllegalStateException("创建地图数据失败", e);
+        }
+        packet.getModifier().write(4, patch);
+        return packet;
+    }
+
+    private static PacketContainer createLegacyMapPacket(int mapId, byte[] bytes) {
+        PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.MAP);
+        StructureModifier<Integer> integers = packet.getIntegers();
+        integers.write(0, mapId);
+        integers.write(1, 0);
+        integers.write(2, 0);
+        integers.write(3, 128);
+        integers.write(4, 128);
+        packet.getBytes().write(0, (byte) 0);
+        packet.getByteArrays().write(0, bytes);
+        packet.getBooleans().write(0, true);
+        // packet.getBooleans().write(1, true);
+        return packet;
     }
 
     /**
      * 构建地图地图
+     * 返回共用的地图物品 不要修改
      *
      * @return 物品
      */
     public static ItemStack buildMapItem() {
-        ItemStack itemStack = new ItemStack(Material.FILLED_MAP);
-        MapMeta mapMeta = (MapMeta) itemStack.getItemMeta();
-        mapMeta.setMapId(0);
-        itemStack.setItemMeta(mapMeta);
-        return itemStack;
+        return buildMapItem(0);
+    }
+
+    /**
+     * 构建指定ID的地图物品
+     * 返回共用的地图物品 不要修改
+     *
+     * @param mapId 地图ID
+     * @return 物品
+     */
+    public static ItemStack buildMapItem(int mapId) {
+        return MAP_ITEMS.computeIfAbsent(mapId, id -> {
+            ItemStack itemStack = new ItemStack(Material.FILLED_MAP);
+            MapMeta mapMeta = (MapMeta) itemStack.getItemMeta();
+            mapMeta.setMapId(id);
+            itemStack.setItemMeta(mapMeta);
+            return itemStack;
+        });
     }
 
     /**
      * 将地图物品给到玩家手里
+     * 只发送手持槽位的 SetSlot 包 不支持时再发送整个背包的 WindowItems 包
      *
      * @param player 玩家
      * @param map    地图物品
+     * @return 发出的数据包
      */
-    public static void sendMapItemPacket(Player player, ItemStack map) {
-        ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
-        PacketContainer packet = protocolManager.createPacket(PacketType.Play.Server.WINDOW_ITEMS);
-        ArrayList<ItemStack> items = new ArrayList<>(46);
+    public static PacketContainer sendMapItemPacket(Player player, ItemStack map) {
         int slot = 36 + player.getInventory().getHeldItemSlot();
-        for (int i = 0; i < 46; i++) {
-            items.add(new ItemStack(Material.AIR));
+        PacketContainer packet;
+        try {
+            packet = createSetSlotPacket(slot, map);
+        } catch (FieldAccessException e) {
+            packet = createWindowItemsPacket(slot, map);
         }
-        items.set(slot, map);
-        packet.getIntegers().write(0, 0);
-        packet.getItemListModifier().write(0, items);
         try {
-            protocolManager.sendServerPacket(player, packet, false);
+            ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet, false);
         } catch (InvocationTargetException e) {
             e.printStackTrace();
         }
+        return packet;
+    }
+
+    /**
+     * 设置玩家背包一个槽位的数据包
+     * 1.17.1 起窗口ID和槽位之间多了一个状态ID
+     */
+    private static PacketContainer createSetSlotPacket(int slot, ItemStack item) {
+        PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.SET_SLOT);
+        StructureModifier<Integer> integers = packet.getIntegers();
+        integers.write(0, 0);
+        integers.write(integers.size() - 1, slot);
+        packet.getItemModifier().write(0, item);
+        return packet;
+    }
+
+    /**
+     * 设置玩家整个背包的数据包 其它槽位都为空
+     */
+    private static PacketContainer createWindowItemsPacket(int slot, ItemStack item) {
+        PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.WINDOW_ITEMS);
+        ItemStack[] items = new ItemStack[46];
+        Arrays.fill(items, MapItemHolder.AIR);
+        items[slot] = item;
+        packet.getIntegers().write(0, 0);
+        packet.getItemListModifier().write(0, Arrays.asList(items));
+        return packet;
+    }
+
+    /**
+     * 第一次使用时才创建物品
+     */
+    private static final class MapItemHolder {
+
+        private static final ItemStack AIR = new ItemStack(Material.AIR);
     }
 
 }
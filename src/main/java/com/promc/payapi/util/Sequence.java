@@ -3,6 +3,8 @@ package com.promc.payapi.util;
 /**
  * 雪花算法
  * 参考: https://gitee.com/yu120/sequence
+ * <p>
+ * 基于synchronized实现 高并发下请使用无锁的 {@link AtomicSequence}
  */
 public final class Sequence {
 
@@ -10,33 +12,33 @@ public final class Sequence {
      * 起始时间戳
      * 2021年10月1日
      */
-    private static final long START_TIME = 1633046400000L;
+    static final long START_TIME = 1633046400000L;
 
     /**
      * dataCenterId占用的位数：2
      */
-    private static final long DATA_CENTER_ID_BITS = 2L;
+    static final long DATA_CENTER_ID_BITS = 2L;
     /**
      * workerId占用的位数：8
      */
-    private static final long WORKER_ID_BITS = 8L;
+    static final long WORKER_ID_BITS = 8L;
     /**
      * 序列号占用的位数：12（表示只允许workId的范围为：0-4095）
      */
-    private static final long SEQUENCE_BITS = 12L;
+    static final long SEQUENCE_BITS = 12L;
 
     /**
      * workerId可以使用范围：0-255
      */
-    private static final long MAX_WORKER_ID = ~(-1L << WORKER_ID_BITS);
+    public static final long MAX_WORKER_ID = ~(-1L << WORKER_ID_BITS);
     /**
      * dataCenterId可以使用范围：0-3
      */
-    private static final long MAX_DATA_CENTER_ID = ~(-1L << DATA_CENTER_ID_BITS);
+    public static final long MAX_DATA_CENTER_ID = ~(-1L << DATA_CENTER_ID_BITS);
 
-    private static final long WORKER_ID_SHIFT = SEQUENCE_BITS;
-    private static final long DATA_CENTER_ID_SHIFT = SEQUENCE_BITS + WORKER_ID_BITS;
-    private static final long TIMESTAMP_LEFT_SHIFT = SEQUENCE_BITS + WORKER_ID_BITS + DATA_CENTER_ID_BITS;
+    static final long WORKER_ID_SHIFT = SEQUENCE_BITS;
+    static final long DATA_CENTER_ID_SHIFT = SEQUENCE_BITS + WORKER_ID_BITS;
+    static final long TIMESTAMP_LEFT_SHIFT = SEQUENCE_BITS + WORKER_ID_BITS + DATA_CENTER_ID_BITS;
 
     /**
      * 用mask防止溢出:位与运算保证计算的结果范围始终是 0-4095
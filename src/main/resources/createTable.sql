@@ -2,7 +2,7 @@
 CREATE TABLE IF NOT EXISTS `pay_order` (
     `id` INTEGER PRIMARY KEY,
     `subject` TEXT NOT NULL,
-    `buyer` TEXT NOT NULL,
+    `buyer` TEXT NOT NULL, -- binary-buyer: BLOB
     `total_fee` NUMERIC NOT NULL,
     `status` INTEGER NOT NULL,
     `create_time` TIMESTAMP NOT NULL,
@@ -10,15 +10,38 @@ CREATE TABLE IF NOT EXISTS `pay_order` (
     `pay_info` TEXT DEFAULT NULL
 );
 
+CREATE INDEX IF NOT EXISTS `idx_buyer_create_time` ON `pay_order` (`buyer`, `create_time`);
+CREATE INDEX IF NOT EXISTS `idx_status_create_time` ON `pay_order` (`status`, `create_time`);
+CREATE INDEX IF NOT EXISTS `idx_create_time` ON `pay_order` (`create_time`, `id`);
+
+CREATE TABLE IF NOT EXISTS `pay_worker` (
+    `data_center_id` INTEGER NOT NULL,
+    `worker_id` INTEGER NOT NULL,
+    `owner` TEXT NOT NULL,
+    `expire_time` INTEGER NOT NULL,
+    PRIMARY KEY (`data_center_id`, `worker_id`)
+);
+
 -- MySQL --
 CREATE TABLE IF NOT EXISTS `pay_order` (
     `id` bigint NOT NULL COMMENT '订单号',
     `subject` varchar(255) NOT NULL COMMENT '订单标题',
-    `buyer` varchar(255) NOT NULL COMMENT '买家名称',
+    `buyer` varchar(255) NOT NULL COMMENT '买家名称', -- binary-buyer: binary(16)
     `total_fee` float(11,2) NOT NULL COMMENT '订单金额',
     `status` int(1) NOT NULL COMMENT '订单状态',
     `create_time` datetime NOT NULL COMMENT '订单创建时间',
     `pay_time` datetime DEFAULT NULL COMMENT '订单支付时间',
     `pay_info` text DEFAULT NULL COMMENT '订单支付信息',
-    PRIMARY KEY (`id`)
+    PRIMARY KEY (`id`),
+    KEY `idx_buyer_create_time` (`buyer`, `create_time`),
+    KEY `idx_status_create_time` (`status`, `create_time`),
+    KEY `idx_create_time` (`create_time`, `id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE IF NOT EXISTS `pay_worker` (
+    `data_center_id` int NOT NULL COMMENT '数据中心ID',
+    `worker_id` int NOT NULL COMMENT '工作ID',
+    `owner` varchar(64) NOT NULL COMMENT '租用者',
+    `expire_time` bigint NOT NULL COMMENT '租约过期时间',
+    PRIMARY KEY (`data_center_id`, `worker_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
\ No newline at end of file
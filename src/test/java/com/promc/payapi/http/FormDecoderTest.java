@@ -0,0 +1,73 @@
+package com.promc.payapi.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormDecoderTest {
+
+    private static Map<String, String> decode(String content) {
+        ByteBuf buf = Unpooled.copiedBuffer(content, StandardCharsets.UTF_8);
+        try {
+            return FormDecoder.decode(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void percentEncoding() {
+        Map<String, String> params = decode("subject=%E6%B5%8B%E8%AF%95%e5%95%86%e5%93%81&total_amount=0.01");
+        assertEquals("测试商品", params.get("subject"));
+        assertEquals("0.01", params.get("total_amount"));
+        assertEquals("a&b=c", decode("x=a%26b%3Dc").get("x"));
+        // 参数名也会解码
+        assertEquals("1", decode("%E5%90%8D=1").get("名"));
+    }
+
+    @Test
+    void plus() {
+        assertEquals("2023-01-01 12:00:00", decode("gmt_payment=2023-01-01+12:00:00").get("gmt_payment"));
+        // 编码后的 + 不是空格
+        assertEquals("a+b", decode("sign=a%2Bb").get("sign"));
+    }
+
+    @Test
+    void separators() {
+        // Base64签名中的 = 原样保留
+        assertEquals("abc/+==", decode("sign=abc%2F%2B==").get("sign"));
+        Map<String, String> params = decode("a=1&b&=2&&a=3&c=");
+        assertEquals("3", params.get("a"));
+        assertEquals("", params.get("b"));
+        assertEquals("", params.get("c"));
+        assertFalse(params.containsKey(""));
+        assertEquals(3, params.size());
+        assertTrue(decode("").isEmpty());
+    }
+
+    @Test
+    void keepsReaderIndex() {
+        ByteBuf buf = Unpooled.copiedBuffer("xa=1", StandardCharsets.UTF_8);
+        buf.readByte();
+        assertEquals("1", FormDecoder.decode(buf).get("a"));
+        assertEquals(1, buf.readerIndex());
+        buf.release();
+    }
+
+    @Test
+    void malformed() {
+        assertThrows(IllegalArgumentException.class, () -> decode("a=%4"));
+        assertThrows(IllegalArgumentException.class, () -> decode("a=%"));
+        assertThrows(IllegalArgumentException.class, () -> decode("a=%zz"));
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i <= FormDecoder.MAX_PARAMS; i++) {
+            builder.append('p').append(i).append("=1&");
+        }
+        assertThrows(IllegalArgumentException.class, () -> decode(builder.toString()));
+    }
+}
@@ -0,0 +1,81 @@
+package com.promc.payapi.payway.paywayinf;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TencentSignerTest {
+
+    /**
+     * 微信支付文档中的签名示例
+     */
+    private static final String KEY = "192006250b4c09247ec02edce69f6a2d";
+
+    private static Map<String, Object> params() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("appid", "wxd930ea5d5a258f4f");
+        params.put("mch_id", "10000100");
+        params.put("device_info", 1000);
+        params.put("body", "test");
+        params.put("nonce_str", "ibuaiVcKdpRxkhJA");
+        return params;
+    }
+
+    @Test
+    void md5() {
+        TencentSigner signer = new TencentSigner(KEY, TencentSigner.SignType.MD5);
+        assertEquals("9A0A8659F005D6984697E2CA0A9CF3B7", signer.sign(params()));
+        // 线程内复用摘要状态 第二次结果相同
+        assertEquals("9A0A8659F005D6984697E2CA0A9CF3B7", signer.sign(params()));
+    }
+
+    @Test
+    void hmacSha256() {
+        TencentSigner signer = new TencentSigner(KEY, TencentSigner.SignType.HMAC_SHA256);
+        assertEquals("6A9AE1657590FD6257D693A078E1C3E4BB6BA4DC30B23E0EE2496E54170DACD6", signer.sign(params()));
+    }
+
+    @Test
+    void skipsSignAndEmptyValues() {
+        Map<String, Object> params = params();
+        params.put("sign", "9A0A8659F005D6984697E2CA0A9CF3B7");
+        params.put("attach", "");
+        params.put("detail", null);
+        TencentSigner signer = new TencentSigner(KEY, TencentSigner.SignType.MD5);
+        assertEquals("9A0A8659F005D6984697E2CA0A9CF3B7", signer.sign(params));
+    }
+
+    @Test
+    void verify() {
+        TencentSigner signer = new TencentSigner(KEY, TencentSigner.SignType.MD5);
+        assertTrue(signer.verify(params(), "9A0A8659F005D6984697E2CA0A9CF3B7"));
+        assertTrue(signer.verify(params(), "9a0a8659f005d6984697e2ca0a9cf3b7"));
+        assertFalse(signer.verify(params(), "9A0A8659F005D6984697E2CA0A9CF3B8"));
+        assertFalse(signer.verify(params(), ""));
+    }
+
+    @Test
+    void md5OfLongContent() throws Exception {
+        // 超过缓冲区长度 包含多字节字符
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("中a😀");
+        }
+        byte[] digest = MessageDigest.getInstance("MD5").digest(builder.toString().getBytes(StandardCharsets.UTF_8));
+        assertEquals(String.format("%032X", new BigInteger(1, digest)), TencentSigner.md5(builder));
+        assertEquals("D41D8CD98F00B204E9800998ECF8427E", TencentSigner.md5(""));
+    }
+
+    @Test
+    void signType() {
+        assertEquals(TencentSigner.SignType.HMAC_SHA256, TencentSigner.SignType.of("HMAC-SHA256"));
+        assertEquals(TencentSigner.SignType.MD5, TencentSigner.SignType.of("md5"));
+        assertThrows(IllegalArgumentException.class, () -> TencentSigner.SignType.of("RSA"));
+    }
+}
@@ -0,0 +1,158 @@
+package com.promc.payapi.session;
+
+import com.promc.payapi.api.order.Order;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaySessionRegistryTest {
+
+    private final PaySessionRegistry sessions = new PaySessionRegistry();
+
+    private static Order order(UUID buyer, long id) {
+        Order order = new Order();
+        order.setId(id);
+        order.setBuyer(buyer);
+        return order;
+    }
+
+    @Test
+    void beginShowClose() {
+        UUID player = UUID.randomUUID();
+        PaySession session = sessions.begin(order(player, 1L));
+        assertNotNull(session);
+        assertEquals(PaySession.State.INITIATING, session.getState());
+        assertFalse(sessions.isEmpty());
+        // 还没有显示二维码
+        assertFalse(sessions.isShowing(player));
+        assertNull(sessions.close(player));
+
+        assertTrue(sessions.show(session));
+        assertTrue(sessions.isShowing(player));
+        assertEquals(1L, sessions.snapshotShowing().get(player).getId());
+
+        assertSame(session, sessions.close(player));
+        assertEquals(PaySession.State.CLOSED, session.getState());
+        assertNull(sessions.get(player));
+        assertTrue(sessions.isEmpty());
+        // 已经关闭的会话不能再显示
+        assertFalse(sessions.show(session));
+    }
+
+    @Test
+    void failOnlyWhileInitiating() {
+        UUID player = UUID.randomUUID();
+        PaySession session = sessions.begin(order(player, 1L));
+        assertNotNull(session);
+        assertTrue(sessions.show(session));
+        // 已经显示的会话不受影响
+        sessions.fail(session);
+        assertEquals(PaySession.State.SHOWING, session.getState());
+        assertSame(session, sessions.get(player));
+
+        PaySession other = sessions.begin(order(UUID.randomUUID(), 2L));
+        assertNotNull(other);
+        sessions.fail(other);
+        assertEquals(PaySession.State.CLOSED, other.getState());
+        assertNull(sessions.get(other.getPlayer()));
+    }
+
+    @Test
+    void pay() {
+        UUID player = UUID.randomUUID();
+        Order order = order(player, 1L);
+        PaySession session = sessions.begin(order);
+        assertNotNull(session);
+        // 不是这个会话的订单
+        assertNull(sessions.pay(order(player, 2L)));
+
+        assertEquals(PaySession.State.INITIATING, sessions.pay(order));
+        assertEquals(PaySession.State.PAID, session.getState());
+        assertTrue(sessions.isEmpty());
+        assertNull(sessions.pay(order));
+        // 支付后显示二维码失败 发起支付的一方负责收回地图
+        assertFalse(sessions.show(session));
+
+        PaySession next = sessions.begin(order(player, 3L));
+        assertNotNull(next);
+        assertTrue(sessions.show(next));
+        assertEquals(PaySession.State.SHOWING, sessions.pay(next.getOrder()));
+        assertFalse(sessions.close(next));
+    }
+
+    @Test
+    void onlyOneSessionPerPlayer() {
+        UUID player = UUID.randomUUID();
+        PaySession session = sessions.begin(order(player, 1L));
+        assertNotNull(session);
+        assertNull(sessions.begin(order(player, 2L)));
+        sessions.fail(session);
+        assertNotNull(sessions.begin(order(player, 3L)));
+    }
+
+    @Test
+    void concurrentBeginForSamePlayer() throws Exception {
+        int threads = 16;
+        UUID player = UUID.randomUUID();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 100; round++) {
+                CyclicBarrier barrier = new CyclicBarrier(threads);
+                AtomicInteger begun = new AtomicInteger();
+                List<Future<PaySession>> futures = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    long id = round * threads + i;
+                    futures.add(executor.submit(() -> {
+                        barrier.await();
+                        PaySession session = sessions.begin(order(player, id));
+                        if (session != null) {
+                            begun.incrementAndGet();
+                        }
+                        return session;
+                    }));
+                }
+                PaySession winner = null;
+                for (Future<PaySession> future : futures) {
+                    PaySession session = future.get(10, TimeUnit.SECONDS);
+                    if (session != null) {
+                        winner = session;
+                    }
+                }
+                assertEquals(1, begun.get());
+                assertSame(winner, sessions.get(player));
+                sessions.fail(winner);
+                assertTrue(sessions.isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void mapIdsAreUniqueAndReused() {
+        Set<Integer> mapIds = new HashSet<>();
+        List<PaySession> begun = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            PaySession session = sessions.begin(order(UUID.randomUUID(), i));
+            assertNotNull(session);
+            assertTrue(mapIds.add(session.getMapId()));
+            assertTrue(session.getMapId() >= MapIdAllocator.FIRST_ID);
+            begun.add(session);
+        }
+        for (PaySession session : begun) {
+            sessions.fail(session);
+        }
+        // 结束的会话会回收地图ID
+        PaySession session = sessions.begin(order(UUID.randomUUID(), 1000L));
+        assertNotNull(session);
+        assertTrue(mapIds.contains(session.getMapId()));
+    }
+}
@@ -0,0 +1,98 @@
+package com.promc.payapi.storage;
+
+import com.promc.payapi.api.order.Order;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingStorageTest {
+
+    private File file;
+
+    private HikariDataSource dataSource;
+
+    private SQLiteStorage sqlite;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = File.createTempFile("payapi", ".db");
+        dataSource = WriteBehindStorageTest.sqlite(file);
+        sqlite = new SQLiteStorage(dataSource);
+        sqlite.createTable();
+    }
+
+    @AfterEach
+    void tearDown() {
+        dataSource.close();
+        file.delete();
+    }
+
+    @Test
+    void hitsAfterInsert() {
+        CachingStorage storage = CachingStorage.create(sqlite, 16, 600L);
+        storage.insertOrder(WriteBehindStorageTest.order(1L));
+        Order order = storage.selectOrderById(1L);
+        assertNotNull(order);
+        assertEquals(1L, storage.getHits());
+        assertEquals(0L, storage.getMisses());
+        // 返回的是副本 修改不影响缓存
+        order.setStatus(1);
+        assertEquals(0, storage.selectOrderById(1L).getStatus());
+    }
+
+    @Test
+    void missLoadsFromDatabase() {
+        sqlite.insertOrder(WriteBehindStorageTest.order(1L));
+        CachingStorage storage = CachingStorage.create(sqlite, 16, 600L);
+        assertNotNull(storage.selectOrderById(1L));
+        assertNotNull(storage.selectOrderById(1L));
+        assertNull(storage.selectOrderById(2L));
+        assertEquals(1L, storage.getHits());
+        assertEquals(2L, storage.getMisses());
+    }
+
+    @Test
+    void markPayUpdatesCache() {
+        CachingStorage storage = CachingStorage.create(sqlite, 16, 600L);
+        storage.insertOrder(WriteBehindStorageTest.order(1L));
+        assertTrue(storage.markPay(1L, "info"));
+        Order order = storage.selectOrderById(1L);
+        assertEquals(1, order.getStatus());
+        assertEquals("info", order.getPayInfo());
+        assertFalse(storage.markPay(1L, "again"));
+        assertNull(storage.markPayAndGet(1L, "again"));
+        assertEquals(1, storage.selectOrderById(1L).getStatus());
+    }
+
+    @Test
+    void expiredEntriesMiss() {
+        CachingStorage storage = CachingStorage.create(sqlite, 16, 0L);
+        storage.insertOrder(WriteBehindStorageTest.order(1L));
+        assertNotNull(storage.selectOrderById(1L));
+        assertEquals(0L, storage.getHits());
+        assertEquals(1L, storage.getMisses());
+    }
+
+    @Test
+    void cachesOnlyAfterAsyncWrite() throws Exception {
+        WriteBehindStorage writeBehind = new WriteBehindStorage(sqlite, 100, 50L, 1000);
+        try {
+            CachingStorage storage = CachingStorage.create(writeBehind, 16, 600L);
+            assertTrue(storage instanceof AsyncWriteStorage);
+            AsyncWriteStorage async = (AsyncWriteStorage) storage;
+            async.insertOrderAsync(WriteBehindStorageTest.order(1L)).get(10, TimeUnit.SECONDS);
+            assertNotNull(storage.selectOrderById(1L));
+            assertEquals(1L, storage.getHits());
+            assertTrue(async.markPayAsync(1L, "info").get(10, TimeUnit.SECONDS));
+            assertEquals(1, storage.selectOrderById(1L).getStatus());
+        } finally {
+            writeBehind.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.promc.payapi.storage;
+
+import com.promc.payapi.api.order.Order;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBehindStorageTest {
+
+    private File file;
+
+    private HikariDataSource dataSource;
+
+    private SQLiteStorage sqlite;
+
+    private WriteBehindStorage storage;
+
+    static Order order(long id) {
+        Order order = new Order();
+        order.setId(id);
+        order.setBuyer(UUID.randomUUID());
+        order.setTotalFee(new BigDecimal("0.01"));
+        order.setSubject("测试");
+        order.setCreateTime(new Timestamp(System.currentTimeMillis()));
+        return order;
+    }
+
+    static HikariDataSource sqlite(File file) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:sqlite:" + file.getPath());
+        return new HikariDataSource(config);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = File.createTempFile("payapi", ".db");
+        dataSource = sqlite(file);
+        sqlite = new SQLiteStorage(dataSource);
+        sqlite.createTable();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (storage != null) {
+            storage.close();
+        }
+        dataSource.close();
+        file.delete();
+    }
+
+    @Test
+    void insertThenSelect() throws Exception {
+        storage = new WriteBehindStorage(sqlite, 100, 50L, 1000);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (long id = 1; id <= 500; id++) {
+            futures.add(storage.insertOrderAsync(order(id)));
+        }
+        // 还没有写入的订单 查询时会先等待写入
+        assertNotNull(storage.selectOrderById(500L));
+        for (CompletableFuture<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        for (long id = 1; id <= 500; id++) {
+            assertNotNull(sqlite.selectOrderById(id));
+        }
+    }
+
+    @Test
+    void markPayOnlyOnce() throws Exception {
+        storage = new WriteBehindStorage(sqlite, 100, 50L, 1000);
+        storage.insertOrderAsync(order(1L)).get(10, TimeUnit.SECONDS);
+        // 同一批中标记两次 只有第一次成功 否则会重复发货
+        CompletableFuture<Boolean> first = storage.markPayAsync(1L, "a");
+        CompletableFuture<Boolean> second = storage.markPayAsync(1L, "b");
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        assertFalse(second.get(10, TimeUnit.SECONDS));
+        assertFalse(storage.markPay(2L, "c"));
+        Order order = sqlite.selectOrderById(1L);
+        assertEquals(1, order.getStatus());
+        assertEquals("a", order.getPayInfo());
+    }
+
+    @Test
+    void failFastWhenQueueIsFull() throws Exception {
+        storage = new WriteBehindStorage(sqlite, 1, 50L, 1);
+        List<CompletableFuture<Void>> accepted = new ArrayList<>();
+        int rejected = 0;
+        long start = System.nanoTime();
+        for (long id = 1; id <= 1000; id++) {
+            CompletableFuture<Void> future = storage.insertOrderAsync(order(id));
+            if (future.isCompletedExceptionally()) {
+                rejected++;
+            } else {
+                accepted.add(future);
+            }
+        }
+        // 不等待写入线程
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(rejected > 0);
+        assertThrows(IllegalStateException.class, () -> {
+            for (long id = 2000; id < 3000; id++) {
+                storage.insertOrder(order(id));
+            }
+        });
+        for (CompletableFuture<Void> future : accepted) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void closedStorageRejectsWrites() {
+        storage = new WriteBehindStorage(sqlite, 100, 50L, 1000);
+        storage.close();
+        assertThrows(IllegalStateException.class, () -> storage.insertOrderAsync(order(1L)));
+    }
+}
@@ -0,0 +1,127 @@
+package com.promc.payapi.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AtomicSequenceTest {
+
+    private static final int THREADS = 8;
+
+    private static final int IDS_PER_THREAD = 20000;
+
+    @Test
+    void uniqueAcrossThreads() throws Exception {
+        for (int laneBits = 0; laneBits <= 6; laneBits += 3) {
+            AtomicSequence sequence = new AtomicSequence(1L, 2L, 5L, laneBits);
+            List<long[]> results = generate(sequence, id -> new long[] {id.nextId()});
+            Set<Long> ids = new HashSet<>();
+            for (long[] result : results) {
+                // 同一个线程拿到的订单号递增
+                for (int i = 1; i < result.length; i++) {
+                    assertTrue(result[i] > result[i - 1], "laneBits=" + laneBits);
+                }
+                for (long id : result) {
+                    assertTrue(ids.add(id), "laneBits=" + laneBits + " 重复的ID " + id);
+                }
+            }
+            assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+        }
+    }
+
+    @Test
+    void laterIdIsGreater() throws Exception {
+        // 只有一条通道时 之后生成的订单号一定更大
+        AtomicSequence sequence = new AtomicSequence(0L, 0L);
+        long max = 0L;
+        for (long[] result : generate(sequence, id -> new long[] {id.nextId()})) {
+            for (long id : result) {
+                max = Math.max(max, id);
+            }
+        }
+        assertTrue(sequence.nextId() > max);
+    }
+
+    @Test
+    void nextIdsRange() throws Exception {
+        AtomicSequence sequence = new AtomicSequence(3L, 255L, 5L, 2);
+        // 超过一毫秒内的序列号数量时会跨越多个毫秒
+        long[] ids = sequence.nextIds(5000);
+        assertEquals(5000, ids.length);
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i] > ids[i - 1]);
+        }
+        assertEquals(0, sequence.nextIds(0).length);
+        assertThrows(IllegalArgumentException.class, () -> sequence.nextIds(-1));
+
+        // 多个线程批量获取 与之前获取的也不会重复
+        Set<Long> all = new HashSet<>();
+        for (long[] result : generate(sequence, id -> id.nextIds(100))) {
+            for (long id : result) {
+                assertTrue(all.add(id));
+            }
+        }
+        for (long id : ids) {
+            assertTrue(all.add(id));
+        }
+    }
+
+    @Test
+    void sameLayoutAsSequence() {
+        long id = new AtomicSequence(2L, 100L).nextId();
+        assertEquals(2L, id >> Sequence.DATA_CENTER_ID_SHIFT & Sequence.MAX_DATA_CENTER_ID);
+        assertEquals(100L, id >> Sequence.WORKER_ID_SHIFT & Sequence.MAX_WORKER_ID);
+    }
+
+    @Test
+    void invalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new AtomicSequence(-1L, 0L));
+        assertThrows(IllegalArgumentException.class, () -> new AtomicSequence(0L, Sequence.MAX_WORKER_ID + 1));
+        assertThrows(IllegalArgumentException.class, () -> new AtomicSequence(0L, 0L, 5L, 7));
+    }
+
+    /**
+     * 多个线程同时生成 每个线程的结果按生成顺序排列
+     */
+    private static List<long[]> generate(AtomicSequence sequence, Generator generator) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CyclicBarrier barrier = new CyclicBarrier(THREADS);
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    long[] result = new long[IDS_PER_THREAD];
+                    int filled = 0;
+                    while (filled < result.length) {
+                        for (long id : generator.next(sequence)) {
+                            if (filled < result.length) {
+                                result[filled++] = id;
+                            }
+                        }
+                    }
+                    return result;
+                }));
+            }
+            List<long[]> results = new ArrayList<>();
+            for (Future<long[]> future : futures) {
+                results.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Generator {
+
+        long[] next(AtomicSequence sequence);
+    }
+}
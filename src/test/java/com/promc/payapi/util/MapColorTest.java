@@ -0,0 +1,81 @@
+package com.promc.payapi.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MapColorTest {
+
+    /**
+     * 原来的拾色器 遍历所有地图色 距离相同时取ID最小的
+     */
+    private static byte bruteForce(int r, int g, int b) {
+        byte id = 0;
+        int similarity = Integer.MAX_VALUE;
+        for (Map.Entry<Integer, int[]> en : new TreeMap<>(MapColor.colorMap).entrySet()) {
+            int[] rgb = en.getValue();
+            int R = r - rgb[0];
+            int G = g - rgb[1];
+            int B = b - rgb[2];
+            int s = R * R + G * G + B * B;
+            if (s < similarity) {
+                id = (byte) (int) en.getKey();
+                similarity = s;
+            }
+        }
+        return id;
+    }
+
+    @Test
+    void matchesBruteForceOnPaletteColors() {
+        for (int[] rgb : MapColor.colorMap.values()) {
+            assertEquals(bruteForce(rgb[0], rgb[1], rgb[2]), MapColor.colorPicker(rgb[0], rgb[1], rgb[2]),
+                    rgb[0] + "," + rgb[1] + "," + rgb[2]);
+        }
+    }
+
+    @Test
+    void ignoresAlpha() {
+        int[] rgb = MapColor.colorMap.get(8 * 4 + 2);
+        int color = rgb[0] << 16 | rgb[1] << 8 | rgb[2];
+        assertEquals(MapColor.colorPicker(color), MapColor.colorPicker(0xFF000000 | color));
+    }
+
+    @Test
+    void getByteMatchesColorPicker() {
+        BufferedImage image = new BufferedImage(128, 128, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42L);
+        for (int y = 0; y < 128; y++) {
+            for (int x = 0; x < 128; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        byte[] bytes = MapColor.getByte(image);
+        for (int y = 0; y < 128; y++) {
+            for (int x = 0; x < 128; x++) {
+                assertEquals(MapColor.colorPicker(image.getRGB(x, y)), bytes[y * 128 + x]);
+            }
+        }
+    }
+
+    @Test
+    void colorMapPutRebuildsTables() {
+        int key = 61 * 4 + 2;
+        assertNull(MapColor.colorMap.get(key));
+        try {
+            MapColor.colorMap.put(key, new int[] {3, 4, 250});
+            assertEquals((byte) key, MapColor.colorPicker(3, 4, 250));
+            assertEquals(bruteForce(3, 4, 250), MapColor.colorPicker(3, 4, 250));
+        } finally {
+            MapColor.colorMap.remove(key);
+        }
+        assertNull(MapColor.colorMap.get(key));
+        assertNotEquals((byte) key, MapColor.colorPicker(3, 4, 250));
+        assertThrows(IllegalArgumentException.class, () -> MapColor.colorMap.put(key, new int[2]));
+    }
+}